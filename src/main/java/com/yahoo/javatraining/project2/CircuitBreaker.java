@@ -0,0 +1,253 @@
+package com.yahoo.javatraining.project2;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A circuit breaker around the purchase webservice. The outcomes of the most recent calls are kept in a
+ * sliding window; when the failure ratio in the window reaches the threshold, the circuit opens and calls are
+ * refused for the open period. Afterwards a single probe call is let through to decide whether to close again.
+ * <p>
+ * Callers that are refused may park a task, which is run again when the open period ends.
+ * This class is thread-safe.
+ */
+class CircuitBreaker {
+    private final ScheduledExecutorService timer; //for ending the open period
+    private final TicketManagerMetrics metrics;
+    private final boolean[] window; //true for each failed call
+    private final int minCalls;
+    private final double failureRatio;
+    private final long openMs;
+    private final Lock lock = new ReentrantLock();
+    private final List<Runnable> parked = new ArrayList<>();
+    private CircuitState state = CircuitState.CLOSED;
+    private int calls; //number of outcomes in the window
+    private int next; //next slot in the window
+    private int failures; //number of failures in the window
+    private long openedAt;
+    private boolean probing; //a probe call is in progress
+    private boolean shutdown; //tasks are no longer parked
+    private ScheduledFuture<?> ending; //end of the current open period
+
+    CircuitBreaker(@NotNull TicketManagerOptions options, @NotNull ScheduledExecutorService timer,
+                   @NotNull TicketManagerMetrics metrics) {
+        this.timer = timer;
+        this.metrics = metrics;
+        this.window = new boolean[options.getBreakerWindow()];
+        this.minCalls = Math.min(options.getBreakerMinCalls(), window.length);
+        this.failureRatio = options.getBreakerFailureRatio();
+        this.openMs = options.getBreakerOpenMs();
+        metrics.circuitState(state);
+    }
+
+    /**
+     * Returns the current state of the circuit.
+     *
+     * @return A circuit state.
+     */
+    @NotNull
+    CircuitState state() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long the circuit is going to stay open.
+     *
+     * @return The remaining open time in milliseconds, or 0 if the circuit is not open.
+     */
+    long remainingOpenMs() {
+        lock.lock();
+        try {
+            return state == CircuitState.OPEN ? Math.max(0, openedAt + openMs - System.currentTimeMillis()) : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks for permission to call the webservice. Every call that is permitted must be followed by a call to
+     * success() or failure().
+     *
+     * @return true if the call may be made.
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (state == CircuitState.OPEN && System.currentTimeMillis() - openedAt >= openMs) {
+                transition(CircuitState.HALF_OPEN);
+            }
+            if (state == CircuitState.CLOSED) {
+                return true;
+            }
+            if (state == CircuitState.HALF_OPEN && !probing) {
+                probing = true;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the task once the circuit may let calls through again. If that is already the case, or after shutdown(),
+     * the task is run immediately by the calling thread.
+     *
+     * @param task A task that retries its call.
+     */
+    void park(@NotNull Runnable task) {
+        lock.lock();
+        try {
+            if (!shutdown && (state == CircuitState.OPEN || (state == CircuitState.HALF_OPEN && probing))) {
+                parked.add(task);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        task.run();
+    }
+
+    /**
+     * Records a successful call.
+     */
+    void success() {
+        List<Runnable> resumed = null;
+        lock.lock();
+        try {
+            if (state == CircuitState.HALF_OPEN) {
+                probing = false;
+                resetWindow();
+                transition(CircuitState.CLOSED);
+                resumed = drain();
+            } else {
+                record(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+        run(resumed);
+    }
+
+    /**
+     * Records a failed call.
+     */
+    void failure() {
+        lock.lock();
+        try {
+            if (state == CircuitState.HALF_OPEN) {
+                probing = false;
+                open();
+            } else if (state == CircuitState.CLOSED) {
+                record(true);
+                if (calls >= minCalls && failures >= failureRatio * calls) {
+                    open();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(boolean failed) {
+        if (calls == window.length) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+    }
+
+    private void resetWindow() {
+        calls = 0;
+        next = 0;
+        failures = 0;
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transition(CircuitState.OPEN);
+        metrics.circuitOpened();
+        if (shutdown) {
+            return;
+        }
+        try {
+            ending = timer.schedule(this::endOpenPeriod, openMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down; parked purchases are finished on the next startup
+        }
+    }
+
+    /**
+     * Runs the parked tasks and every task parked later, and cancels the end of the open period, so that a shutdown
+     * does not wait for the circuit. The tasks are expected to find their executor shut down.
+     */
+    void shutdown() {
+        List<Runnable> resumed;
+        lock.lock();
+        try {
+            shutdown = true;
+            if (ending != null) {
+                ending.cancel(false);
+            }
+            resumed = drain();
+        } finally {
+            lock.unlock();
+        }
+        run(resumed);
+    }
+
+    /**
+     * Resumes the parked tasks when the open period ends. One of them becomes the probe; the others park again.
+     */
+    private void endOpenPeriod() {
+        List<Runnable> resumed = null;
+        lock.lock();
+        try {
+            if (state == CircuitState.OPEN && System.currentTimeMillis() - openedAt >= openMs) {
+                transition(CircuitState.HALF_OPEN);
+                resumed = drain();
+            }
+        } finally {
+            lock.unlock();
+        }
+        run(resumed);
+    }
+
+    private void transition(CircuitState next) {
+        state = next;
+        metrics.circuitState(next);
+    }
+
+    private List<Runnable> drain() {
+        List<Runnable> tasks = new ArrayList<>(parked);
+        parked.clear();
+        return tasks;
+    }
+
+    private static void run(List<Runnable> tasks) {
+        if (tasks != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
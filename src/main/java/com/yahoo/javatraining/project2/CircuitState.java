@@ -0,0 +1,23 @@
+package com.yahoo.javatraining.project2;
+
+/**
+ * This enumeration represents the states of the circuit breaker guarding the purchase webservice.
+ */
+public enum CircuitState {
+    /**
+     * The webservice is healthy and purchase calls are made normally.
+     */
+    CLOSED,
+
+    /**
+     * Too many recent purchase calls failed. No calls are made to the webservice; new purchases are rejected and
+     * purchases already in the BUYING state wait until the circuit closes.
+     */
+    OPEN,
+
+    /**
+     * The open period has elapsed and a single probe call is allowed through. The circuit closes if the probe
+     * succeeds and opens again if it fails.
+     */
+    HALF_OPEN
+}
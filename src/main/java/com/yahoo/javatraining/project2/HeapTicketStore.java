@@ -0,0 +1,103 @@
+package com.yahoo.javatraining.project2;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A ticket store that keeps the Ticket objects in an array, located through an open-addressing hash table of slot
+ * numbers. The tickets returned by get() and tickets() are the stored instances, so they reflect later state changes.
+ * AVAILABLE tickets are tracked with one bit per slot.
+ */
+class HeapTicketStore implements TicketStore {
+    private Ticket[] slots; //tickets in the order they were added
+    private int[] table; //slot + 1 of each ticket, 0 if empty
+    private final BitSet available = new BitSet(); //slots of AVAILABLE tickets
+    private int size;
+    private int cursor; //next slot searched by nextAvailable()
+
+    HeapTicketStore(int expectedSize) {
+        this.slots = new Ticket[Math.max(16, expectedSize)];
+        this.table = new int[tableSizeFor(slots.length)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Ticket get(@NotNull String ticketId) {
+        int slot = find(ticketId);
+        return slot < 0 ? null : slots[slot];
+    }
+
+    public void put(@NotNull Ticket ticket) {
+        int slot = find(ticket.getId());
+        if (slot < 0) {
+            if (size == slots.length) {
+                grow();
+            }
+            slot = size++;
+            table[emptyPosition(ticket.getId())] = slot + 1;
+        }
+        slots[slot] = ticket;
+        available.set(slot, ticket.getStatus() == TicketStatusCode.AVAILABLE);
+    }
+
+    public @NotNull List<Ticket> tickets() {
+        return new ArrayList<>(Arrays.asList(slots).subList(0, size));
+    }
+
+    public @Nullable String nextAvailable() {
+        int slot = available.nextSetBit(cursor);
+        if (slot < 0) {
+            slot = available.nextSetBit(0);
+        }
+        if (slot < 0) {
+            return null;
+        }
+        cursor = slot + 1;
+        return slots[slot].getId();
+    }
+
+    private int find(String ticketId) {
+        int mask = table.length - 1;
+        for (int pos = mix(ticketId.hashCode()) & mask; ; pos = (pos + 1) & mask) {
+            int entry = table[pos];
+            if (entry == 0) {
+                return -1;
+            }
+            if (slots[entry - 1].getId().equals(ticketId)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private int emptyPosition(String ticketId) {
+        int mask = table.length - 1;
+        int pos = mix(ticketId.hashCode()) & mask;
+        while (table[pos] != 0) {
+            pos = (pos + 1) & mask;
+        }
+        return pos;
+    }
+
+    private void grow() {
+        slots = Arrays.copyOf(slots, 2 * slots.length);
+        table = new int[tableSizeFor(slots.length)];
+        for (int slot = 0; slot < size; slot++) {
+            table[emptyPosition(slots[slot].getId())] = slot + 1;
+        }
+    }
+
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
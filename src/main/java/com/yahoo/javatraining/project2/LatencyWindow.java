@@ -0,0 +1,57 @@
+package com.yahoo.javatraining.project2;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size window of the most recent latency samples, used to estimate latency percentiles.
+ * This class is thread-safe.
+ */
+class LatencyWindow {
+    // Percentiles are not reported until the window holds at least this many samples.
+    private static final int MIN_SAMPLES = 20;
+
+    private final AtomicLongArray samples;
+
+    private final AtomicLong recorded = new AtomicLong();
+
+    /**
+     * Constructs an empty window.
+     *
+     * @param size The number of samples retained.
+     */
+    LatencyWindow(int size) {
+        this.samples = new AtomicLongArray(size);
+    }
+
+    /**
+     * Adds a sample, replacing the oldest one if the window is full.
+     *
+     * @param latencyMs A latency in milliseconds.
+     */
+    void record(long latencyMs) {
+        long n = recorded.getAndIncrement();
+        samples.set((int) (n % samples.length()), latencyMs);
+    }
+
+    /**
+     * Returns the latency below which the given fraction of the samples fall.
+     *
+     * @param fraction A percentile expressed as a fraction between 0 and 1.
+     * @return The latency in milliseconds, or -1 if there are too few samples.
+     */
+    long percentile(double fraction) {
+        int n = (int) Math.min(recorded.get(), samples.length());
+        if (n < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(fraction * n);
+        return sorted[Math.min(n, Math.max(1, rank)) - 1];
+    }
+}
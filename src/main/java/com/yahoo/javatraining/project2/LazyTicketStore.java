@@ -0,0 +1,197 @@
+package com.yahoo.javatraining.project2;
+
+import com.yahoo.javatraining.project2.util.TicketIndex;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A ticket store that reads tickets from the ticket file on first access instead of loading them all up front.
+ * <p>
+ * Tickets are located through the index of the file. A ticket stays materialized as a Ticket object while it is
+ * HELD or BUYING. Once it is AVAILABLE or BOUGHT, its writes have completed and the file agrees, it is dropped,
+ * since the file then holds all its state. Every put() must be followed by a storage write of the ticket that is reported
+ * with written(). Dropping is done a few tickets at a time on later calls, so the number of materialized tickets
+ * follows the number of tickets in use rather than the size of the inventory.
+ */
+class LazyTicketStore implements TicketStore {
+    // Maximum number of tickets dropped per call.
+    private static final int MAX_EVICTIONS = 4;
+
+    private final TicketIndex index;
+    private final HashMap<String, Ticket> loaded = new HashMap<>();
+    private final HashMap<String, Integer> lines = new HashMap<>(); //line numbers of the loaded tickets
+    private final BitSet taken = new BitSet(); //lines of loaded tickets that are not AVAILABLE
+    private final ArrayDeque<String> settled = new ArrayDeque<>(); //AVAILABLE/BOUGHT tickets to drop once written
+    private final HashMap<String, Integer> writing = new HashMap<>(); //storage writes in flight, by ticket id
+    private final ConcurrentLinkedQueue<String> written = new ConcurrentLinkedQueue<>(); //completed writes
+    private int cursor; //next line searched by nextAvailable()
+    private HashSet<String> changed; //tickets put since tracking started, or null if not tracking
+
+    LazyTicketStore(@NotNull TicketIndex index) {
+        this.index = index;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public Ticket get(@NotNull String ticketId) {
+        Ticket ticket = loaded.get(ticketId);
+        if (ticket != null) {
+            return ticket;
+        }
+        evict();
+        try {
+            int line = index.find(ticketId);
+            if (line < 0) {
+                return null;
+            }
+            ticket = index.read(line);
+            load(ticket, line);
+        } catch (TicketManagerException e) {
+            throw new IllegalStateException(e);
+        }
+        return ticket;
+    }
+
+    public void put(@NotNull Ticket ticket) {
+        loaded.put(ticket.getId(), ticket);
+        Integer line = lines.get(ticket.getId());
+        if (line != null) {
+            taken.set(line, ticket.getStatus() != TicketStatusCode.AVAILABLE);
+        }
+        writing.merge(ticket.getId(), 1, Integer::sum);
+        if (changed != null) {
+            changed.add(ticket.getId());
+        }
+        if (settled(ticket.getStatus())) {
+            settled.add(ticket.getId());
+        }
+        evict();
+    }
+
+    public @NotNull List<Ticket> tickets() {
+        List<Ticket> results = new ArrayList<>(index.size());
+        try {
+            for (int line = 0; line < index.size(); line++) {
+                Ticket ticket = index.read(line);
+                Ticket current = loaded.get(ticket.getId());
+                results.add(current != null ? current : ticket);
+            }
+        } catch (TicketManagerException e) {
+            throw new IllegalStateException(e);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the id of an AVAILABLE ticket, searching the file round-robin from where the last search ended.
+     * Lines of loaded tickets that have been taken are skipped without reading them.
+     *
+     * @return A ticket id, or null if no ticket is AVAILABLE in the file.
+     */
+    @Nullable
+    public String nextAvailable() {
+        int size = index.size();
+        try {
+            for (int i = 0; i < size; i++) {
+                int line = cursor;
+                cursor = (cursor + 1) % size;
+                if (taken.get(line) || index.status(line) != TicketStatusCode.AVAILABLE) {
+                    continue;
+                }
+                Ticket ticket = index.read(line);
+                Ticket current = loaded.get(ticket.getId());
+                if (current == null) {
+                    load(ticket, line);
+                    return ticket.getId();
+                } else if (current.getStatus() == TicketStatusCode.AVAILABLE) {
+                    return ticket.getId();
+                }
+            }
+        } catch (TicketManagerException e) {
+            throw new IllegalStateException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Reports that the storage write following a put() of the ticket has completed or failed.
+     * Unlike the other methods, this method is thread-safe.
+     *
+     * @param ticketId A ticket id.
+     */
+    void written(@NotNull String ticketId) {
+        written.add(ticketId);
+    }
+
+    /**
+     * Starts or stops recording which tickets are put.
+     *
+     * @param track true to start recording, false to stop and forget the recorded tickets.
+     */
+    void trackChanges(boolean track) {
+        changed = track ? new HashSet<>() : null;
+    }
+
+    /**
+     * Returns true if the ticket has been put since tracking started.
+     */
+    boolean changed(@NotNull String ticketId) {
+        return changed != null && changed.contains(ticketId);
+    }
+
+    /**
+     * Returns the number of tickets currently materialized.
+     */
+    int loadedCount() {
+        return loaded.size();
+    }
+
+    private void load(Ticket ticket, int line) {
+        loaded.put(ticket.getId(), ticket);
+        lines.put(ticket.getId(), line);
+        if (ticket.getStatus() != TicketStatusCode.AVAILABLE) {
+            taken.set(line);
+        }
+        if (settled(ticket.getStatus())) {
+            settled.add(ticket.getId());
+        }
+    }
+
+    /**
+     * Drops AVAILABLE and BOUGHT tickets whose state the file already holds.
+     */
+    private void evict() {
+        String done;
+        while ((done = written.poll()) != null) {
+            writing.computeIfPresent(done, (id, n) -> n == 1 ? null : n - 1);
+        }
+        for (int i = 0; i < MAX_EVICTIONS && !settled.isEmpty(); i++) {
+            String ticketId = settled.peek();
+            Ticket ticket = loaded.get(ticketId);
+            if (ticket != null && settled(ticket.getStatus())) {
+                int line = lines.get(ticketId);
+                if (writing.containsKey(ticketId) || index.status(line) != ticket.getStatus()) {
+                    return; //not written yet
+                }
+                loaded.remove(ticketId);
+                lines.remove(ticketId);
+                taken.clear(line);
+            }
+            settled.poll();
+        }
+    }
+
+    private static boolean settled(TicketStatusCode status) {
+        return status == TicketStatusCode.AVAILABLE || status == TicketStatusCode.BOUGHT;
+    }
+}
@@ -0,0 +1,282 @@
+package com.yahoo.javatraining.project2;
+
+import javax.validation.constraints.NotNull;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A ticket store that keeps all ticket state outside the Java heap, so that millions of tickets add nothing to
+ * the work of the garbage collector. Ticket objects are only created when a ticket is requested and are copies
+ * of the stored state.
+ * <p>
+ * Each ticket occupies a fixed-size slot in a direct byte buffer:
+ * <pre>
+ *   status (1) | holdTime (8) | buyingTime (8) | id | userId | holdTransId | buyTransId
+ * </pre>
+ * Ids are stored as a length byte followed by their UTF-8 bytes. Transaction ids in the canonical UUID format
+ * are stored as 16 binary bytes. Slots are located through an open-addressing hash table that is also kept in
+ * a direct buffer. AVAILABLE tickets are tracked with one bit per slot.
+ */
+class OffHeapTicketStore implements TicketStore {
+    // Maximum length in UTF-8 bytes of ticket and user ids.
+    static final int MAX_ID_BYTES = 32;
+
+    // Maximum length in UTF-8 bytes of transaction ids that are not UUIDs.
+    static final int MAX_TRANS_ID_BYTES = 48;
+
+    private static final int STATUS = 0;
+    private static final int HOLD_TIME = STATUS + 1;
+    private static final int BUYING_TIME = HOLD_TIME + 8;
+    private static final int ID = BUYING_TIME + 8;
+    private static final int USER_ID = ID + 1 + MAX_ID_BYTES;
+    private static final int HOLD_TRANS_ID = USER_ID + 1 + MAX_ID_BYTES;
+    private static final int BUY_TRANS_ID = HOLD_TRANS_ID + 1 + MAX_TRANS_ID_BYTES;
+    static final int SLOT_SIZE = BUY_TRANS_ID + 1 + MAX_TRANS_ID_BYTES;
+
+    // Tags of a stored transaction id. Larger tag values hold the length of a raw id plus RAW.
+    private static final int NULL = 0;
+    private static final int BINARY_UUID = 1;
+    private static final int RAW = 2;
+
+    private static final TicketStatusCode[] STATUSES = TicketStatusCode.values();
+
+    private final int slotsPerChunk = (1 << 30) / SLOT_SIZE;
+    private final ByteBuffer[] chunks;
+    private final IntBuffer index; //slot + 1 of each ticket, 0 if empty
+    private final int capacity;
+    private final BitSet available = new BitSet(); //slots of AVAILABLE tickets
+    private int size;
+    private int cursor; //next slot searched by nextAvailable()
+
+    /**
+     * Allocates a store for up to the given number of tickets.
+     *
+     * @param capacity The maximum number of tickets.
+     */
+    OffHeapTicketStore(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        int chunkCount = (this.capacity + slotsPerChunk - 1) / slotsPerChunk;
+        this.chunks = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            int slots = Math.min(slotsPerChunk, this.capacity - i * slotsPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        }
+        int indexSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+        this.index = ByteBuffer.allocateDirect(indexSize * 4).asIntBuffer();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Ticket get(@NotNull String ticketId) {
+        int slot = find(utf8(ticketId));
+        return slot < 0 ? null : read(slot);
+    }
+
+    public void put(@NotNull Ticket ticket) {
+        byte[] id = utf8(ticket.getId());
+        int slot = find(id);
+        if (slot < 0) {
+            if (size == capacity) {
+                throw new IllegalStateException("Off-heap ticket store is full: " + capacity);
+            }
+            if (id.length > MAX_ID_BYTES) {
+                throw new IllegalArgumentException("Id is too long for the off-heap ticket store: " + ticket.getId());
+            }
+            slot = size++;
+            index.put(emptyPosition(id), slot + 1);
+            writeString(slot, ID, id, MAX_ID_BYTES);
+        }
+        write(slot, ticket);
+    }
+
+    public @NotNull List<Ticket> tickets() {
+        List<Ticket> results = new ArrayList<>(size);
+        for (int slot = 0; slot < size; slot++) {
+            results.add(read(slot));
+        }
+        return results;
+    }
+
+    public String nextAvailable() {
+        int slot = available.nextSetBit(cursor);
+        if (slot < 0) {
+            slot = available.nextSetBit(0);
+        }
+        if (slot < 0) {
+            return null;
+        }
+        cursor = slot + 1;
+        return readString(chunk(slot), offset(slot) + ID);
+    }
+
+    /**
+     * Returns the slot of the ticket with the given id, or -1.
+     */
+    private int find(byte[] id) {
+        int mask = index.capacity() - 1;
+        for (int pos = hash(id) & mask; ; pos = (pos + 1) & mask) {
+            int entry = index.get(pos);
+            if (entry == 0) {
+                return -1;
+            }
+            if (idEquals(entry - 1, id)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the free index position for an id that is not in the store.
+     */
+    private int emptyPosition(byte[] id) {
+        int mask = index.capacity() - 1;
+        int pos = hash(id) & mask;
+        while (index.get(pos) != 0) {
+            pos = (pos + 1) & mask;
+        }
+        return pos;
+    }
+
+    private boolean idEquals(int slot, byte[] id) {
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot) + ID;
+        if ((chunk.get(base) & 0xff) != id.length + 1) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (chunk.get(base + 1 + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Ticket read(int slot) {
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+        Ticket ticket = new Ticket(readString(chunk, base + ID));
+        ticket.setStatus(STATUSES[chunk.get(base + STATUS)]);
+        ticket.setHoldTime(chunk.getLong(base + HOLD_TIME));
+        ticket.setBuyingTime(chunk.getLong(base + BUYING_TIME));
+        ticket.setUserId(readString(chunk, base + USER_ID));
+        ticket.setHoldTransId(readTransId(chunk, base + HOLD_TRANS_ID));
+        ticket.setBuyTransId(readTransId(chunk, base + BUY_TRANS_ID));
+        return ticket;
+    }
+
+    private void write(int slot, Ticket ticket) {
+        // Validate first so that a rejected ticket leaves the slot unchanged
+        byte[] userId = ticket.getUserId() == null ? null : utf8(ticket.getUserId());
+        if (userId != null && userId.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Id is too long for the off-heap ticket store: " + ticket.getUserId());
+        }
+        checkTransId(ticket.getHoldTransId());
+        checkTransId(ticket.getBuyTransId());
+
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+        chunk.put(base + STATUS, (byte) ticket.getStatus().ordinal());
+        chunk.putLong(base + HOLD_TIME, ticket.getHoldTime());
+        chunk.putLong(base + BUYING_TIME, ticket.getBuyingTime());
+        writeString(slot, USER_ID, userId, MAX_ID_BYTES);
+        writeTransId(slot, HOLD_TRANS_ID, ticket.getHoldTransId());
+        writeTransId(slot, BUY_TRANS_ID, ticket.getBuyTransId());
+        available.set(slot, ticket.getStatus() == TicketStatusCode.AVAILABLE);
+    }
+
+    private void writeString(int slot, int field, byte[] value, int maxBytes) {
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot) + field;
+        if (value == null) {
+            chunk.put(base, (byte) NULL);
+            return;
+        }
+        if (value.length > maxBytes) {
+            throw new IllegalArgumentException("Id is too long for the off-heap ticket store: "
+                    + new String(value, StandardCharsets.UTF_8));
+        }
+        chunk.put(base, (byte) (value.length + 1));
+        for (int i = 0; i < value.length; i++) {
+            chunk.put(base + 1 + i, value[i]);
+        }
+    }
+
+    private static String readString(ByteBuffer chunk, int base) {
+        int length = (chunk.get(base) & 0xff) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = chunk.get(base + 1 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeTransId(int slot, int field, String transId) {
+        UUID uuid = transId == null ? null : Ticket.uuid(transId);
+        if (uuid == null) {
+            byte[] raw = transId == null ? null : utf8(transId);
+            ByteBuffer chunk = chunk(slot);
+            int base = offset(slot) + field;
+            chunk.put(base, (byte) (raw == null ? NULL : raw.length + RAW));
+            for (int i = 0; raw != null && i < raw.length; i++) {
+                chunk.put(base + 1 + i, raw[i]);
+            }
+            return;
+        }
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot) + field;
+        chunk.put(base, (byte) BINARY_UUID);
+        chunk.putLong(base + 1, uuid.getMostSignificantBits());
+        chunk.putLong(base + 9, uuid.getLeastSignificantBits());
+    }
+
+    private static void checkTransId(String transId) {
+        if (transId != null && Ticket.uuid(transId) == null && utf8(transId).length > MAX_TRANS_ID_BYTES) {
+            throw new IllegalArgumentException("Transaction id is too long for the off-heap ticket store: " + transId);
+        }
+    }
+
+    private static String readTransId(ByteBuffer chunk, int base) {
+        int tag = chunk.get(base) & 0xff;
+        if (tag == NULL) {
+            return null;
+        }
+        if (tag == BINARY_UUID) {
+            return new UUID(chunk.getLong(base + 1), chunk.getLong(base + 9)).toString();
+        }
+        byte[] bytes = new byte[tag - RAW];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = chunk.get(base + 1 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer chunk(int slot) {
+        return chunks[slot / slotsPerChunk];
+    }
+
+    private int offset(int slot) {
+        return (slot % slotsPerChunk) * SLOT_SIZE;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(byte[] id) {
+        int h = 1;
+        for (byte b : id) {
+            h = 31 * h + b;
+        }
+        return h ^ (h >>> 16);
+    }
+}
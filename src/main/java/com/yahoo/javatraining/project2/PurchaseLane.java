@@ -0,0 +1,21 @@
+package com.yahoo.javatraining.project2;
+
+/**
+ * This enumeration represents the lanes in which purchase calls wait for a thread of the purchase pool.
+ */
+public enum PurchaseLane {
+    /**
+     * The first call of a purchase made by a user through buy().
+     */
+    LIVE,
+
+    /**
+     * A call repeated after a failure, or after the circuit breaker held it back.
+     */
+    RETRY,
+
+    /**
+     * A call completing a purchase found in the BUYING state at startup, including its repeated calls.
+     */
+    RECOVERY
+}
@@ -0,0 +1,128 @@
+package com.yahoo.javatraining.project2;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Orders the purchase calls waiting for a thread of the purchase pool.
+ * <p>
+ * Every call waits in its lane. The pool queue only holds one dispatch token per waiting call, and a token runs
+ * whichever call is next when a thread becomes free, not the call it was queued with. Busy lanes are served by smooth
+ * weighted round-robin, so each gets a share of the threads proportional to its weight, and an idle lane leaves its
+ * share to the others. A call that has waited longer than the maximum lane wait is served first, oldest first, so a
+ * heavy lane cannot starve the others. This class is thread-safe.
+ *
+ * @param <T> The type of the calls.
+ */
+class PurchaseLanes<T> {
+    private static final PurchaseLane[] LANES = PurchaseLane.values();
+
+    private final int[] weights = new int[LANES.length];
+    private final long maxWaitNanos;
+    private final TicketManagerMetrics metrics;
+    private final List<ArrayDeque<Queued<T>>> queues = new ArrayList<>();
+    private final int[] credits = new int[LANES.length]; //weighted round-robin state
+    private final ReentrantLock lock = new ReentrantLock();
+
+    PurchaseLanes(@NotNull TicketManagerOptions options, @NotNull TicketManagerMetrics metrics) {
+        for (PurchaseLane lane : LANES) {
+            weights[lane.ordinal()] = options.getLaneWeight(lane);
+            queues.add(new ArrayDeque<>());
+        }
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(options.getMaxLaneWaitMs());
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues a call in a lane.
+     */
+    void add(@NotNull PurchaseLane lane, @NotNull T call) {
+        lock.lock();
+        try {
+            queues.get(lane.ordinal()).add(new Queued<>(call, System.nanoTime()));
+            metrics.laneQueued(lane);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the call that is due next.
+     *
+     * @return A call, or null if no call is waiting.
+     */
+    @Nullable
+    T next() {
+        lock.lock();
+        try {
+            PurchaseLane lane = oldestOverdue(System.nanoTime());
+            boolean overdue = lane != null;
+            if (!overdue) {
+                lane = weightedNext();
+            }
+            if (lane == null) {
+                return null;
+            }
+            metrics.laneDispatched(lane, overdue);
+            return queues.get(lane.ordinal()).poll().call;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lane whose first call has waited the longest, if it has waited too long.
+     */
+    private PurchaseLane oldestOverdue(long now) {
+        PurchaseLane oldest = null;
+        long oldestAt = 0;
+        for (PurchaseLane lane : LANES) {
+            Queued<T> head = queues.get(lane.ordinal()).peek();
+            if (head != null && now - head.queuedAt > maxWaitNanos && (oldest == null || head.queuedAt < oldestAt)) {
+                oldest = lane;
+                oldestAt = head.queuedAt;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Picks the next busy lane: every busy lane earns its weight in credits, and the lane with the most credits
+     * is served and pays the weights of all busy lanes.
+     */
+    private PurchaseLane weightedNext() {
+        PurchaseLane best = null;
+        int total = 0;
+        for (PurchaseLane lane : LANES) {
+            int i = lane.ordinal();
+            if (queues.get(i).isEmpty()) {
+                credits[i] = 0;
+                continue;
+            }
+            credits[i] += weights[i];
+            total += weights[i];
+            if (best == null || credits[i] > credits[best.ordinal()]) {
+                best = lane;
+            }
+        }
+        if (best != null) {
+            credits[best.ordinal()] -= total;
+        }
+        return best;
+    }
+
+    private static class Queued<T> {
+        final T call;
+        final long queuedAt;
+
+        Queued(T call, long queuedAt) {
+            this.call = call;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.yahoo.javatraining.project2;
+
+import javax.validation.constraints.NotNull;
+import java.security.SecureRandom;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * The default transaction id generator. It creates random (version 4) UUIDs like UUID.randomUUID(), but draws the
+ * bits from generators owned by the calling thread instead of the shared SecureRandom, so concurrent holds neither
+ * contend on a lock nor wait for entropy. Each thread draws the two halves of an id from two generators with 64 bits
+ * of state each, seeded once from SecureRandom, so the ids of a thread come from 128 bits of seed and 122 bits of
+ * each id vary. The ids are not suited for secrets, since they are predictable from earlier ids of the same thread.
+ * This class is thread-safe.
+ */
+class RandomTransactionIds implements TransactionIdGenerator {
+    private static final SecureRandom SEEDS = new SecureRandom();
+    private static final ThreadLocal<Generators> GENERATORS = ThreadLocal.withInitial(Generators::new);
+
+    @NotNull
+    public String next() {
+        Generators generators = GENERATORS.get();
+        long msb = generators.high.nextLong() & ~0xf000L | 0x4000L; //version 4
+        long lsb = generators.low.nextLong() & ~(0xcL << 60) | (0x8L << 60); //IETF variant
+        return new UUID(msb, lsb).toString();
+    }
+
+    /**
+     * The generators of one thread.
+     */
+    private static class Generators {
+        final SplittableRandom high = new SplittableRandom(SEEDS.nextLong());
+        final SplittableRandom low = new SplittableRandom(SEEDS.nextLong());
+    }
+}
@@ -0,0 +1,321 @@
+package com.yahoo.javatraining.project2;
+
+import com.yahoo.javatraining.project2.util.Storage;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Applies all updates to a storage on a single writer thread.
+ * <p>
+ * Callers submit updates to a bounded ring buffer without taking a lock: a caller claims a slot by advancing the tail
+ * sequence with a compare-and-set, fills it and publishes it by writing the sequence number of the slot. The writer
+ * takes every published update in sequence order, merges repeated updates of the same ticket and writes the whole batch
+ * with one storage update. An update may cover many tickets, which are then always written together. The future of each
+ * update completes once the storage update has returned, i.e. with the durability of the storage; in GROUP_FSYNC mode,
+ * where the storage only queues the update, it completes with the flush that forces the update to disk, which the
+ * writer makes by itself once the group window has passed. When the buffer is full, callers wait for the writer to
+ * free slots.
+ * Only the writer thread touches the storage until close() returns. This class is thread-safe.
+ */
+class StorageWriter {
+    private final Storage storage;
+    private final TicketManagerMetrics metrics;
+    private final Consumer<String> written; //told of every completed or failed update, or null
+    private final List<Update> unflushed = new ArrayList<>(); //grouped by the storage until its next flush
+    private boolean grouping; //the storage holds updates to flush by flushDue
+    private long flushDue; //System.nanoTime() deadline of the group window
+    private final Update[] slots;
+    private final AtomicLongArray published; //sequence number of the update in each slot
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); //next sequence number to claim
+    private volatile long head; //next sequence number to write
+    private volatile boolean idle; //the writer is about to park
+    private volatile boolean closed;
+    private volatile boolean stopped; //the writer has exited; slots claimed since are failed
+    private volatile Thread thread; //the writer thread once started
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Starts the writer thread.
+     *
+     * @param storage  The storage to write to. It must not be used by other threads until close() returns.
+     * @param capacity The minimum number of updates the buffer holds; rounded up to a power of two.
+     * @param metrics  Metrics to report to.
+     * @param written  Called on the writer thread with the ticket id of every update once it is written or failed.
+     */
+    StorageWriter(@NotNull Storage storage, int capacity, @NotNull TicketManagerMetrics metrics,
+                  @Nullable Consumer<String> written) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.storage = storage;
+        this.metrics = metrics;
+        this.written = written;
+        this.slots = new Update[size];
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        executor.execute(this::run);
+    }
+
+    /**
+     * Queues an update of a ticket. The state of the ticket is read when the update is written, so later changes
+     * made before then are written with it.
+     *
+     * @param ticket A ticket instance.
+     * @return A future completed once the update is written, or completed exceptionally with a
+     * TicketManagerException if the write failed or the writer is closed.
+     */
+    @NotNull
+    CompletableFuture<Void> submit(@NotNull Ticket ticket) {
+        return publish(new Update(Collections.singletonList(ticket)));
+    }
+
+    /**
+     * Queues an update of several tickets, which are written with the same storage update.
+     *
+     * @param tickets Ticket instances.
+     * @return A future completed once the update is written, or completed exceptionally with a
+     * TicketManagerException if the write failed or the writer is closed.
+     */
+    @NotNull
+    CompletableFuture<Void> submit(@NotNull List<Ticket> tickets) {
+        return publish(new Update(new ArrayList<>(tickets)));
+    }
+
+    /**
+     * Queues a flush of the updates the storage is still grouping.
+     *
+     * @return A future completed once all updates submitted before are written and flushed.
+     */
+    @NotNull
+    CompletableFuture<Void> flush() {
+        return publish(new Update(null));
+    }
+
+    /**
+     * Returns the number of updates waiting for the writer.
+     *
+     * @return An update count.
+     */
+    int queued() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * Rejects further updates, waits until the writer has written and flushed all queued updates and stops it.
+     *
+     * @return A future that tells whether the final flush succeeded; it is complete when this method returns.
+     * @throws InterruptedException If the thread is interrupted while waiting for the writer.
+     */
+    @NotNull
+    CompletableFuture<Void> close() throws InterruptedException {
+        CompletableFuture<Void> flushed = flush();
+        closed = true;
+        LockSupport.unpark(thread);
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return flushed;
+    }
+
+    private CompletableFuture<Void> publish(Update update) {
+        long seq;
+        while (true) {
+            if (closed) {
+                update.done.completeExceptionally(new TicketManagerException("Storage writer is closed"));
+                return update.done;
+            }
+            seq = tail.get();
+            if (seq - head >= slots.length) {
+                Thread.yield(); //full; wait for the writer
+            } else if (tail.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+        }
+        int slot = (int) seq & mask;
+        slots[slot] = update;
+        published.set(slot, seq); //volatile write orders the slot before the sequence
+        if (stopped) {
+            //closed after the check above and the writer may have exited before seeing the claim
+            update.done.completeExceptionally(new TicketManagerException("Storage writer is closed"));
+        } else if (idle) {
+            LockSupport.unpark(thread);
+        }
+        return update.done;
+    }
+
+    private void run() {
+        thread = Thread.currentThread();
+        List<Update> batch = new ArrayList<>();
+        while (true) {
+            long next = head;
+            int slot = (int) next & mask;
+            while (published.get(slot) == next) {
+                batch.add(slots[slot]);
+                slots[slot] = null;
+                slot = (int) ++next & mask;
+            }
+            head = next; //frees the slots for the callers
+
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            } else if (closed && next == tail.get()) {
+                stop();
+                return;
+            } else if (closed) {
+                Thread.yield(); //a caller has claimed a slot but not yet published it
+            } else {
+                idle = true;
+                if (published.get(slot) != next && !closed) {
+                    if (grouping) {
+                        LockSupport.parkNanos(this, flushDue - System.nanoTime());
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                idle = false;
+                if (grouping && System.nanoTime() - flushDue >= 0) {
+                    flushGroup();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails the slots claimed by callers that passed the closed check before close() but claimed their slot after the
+     * writer saw the tail for the last time. A caller that claims a slot after the tail is read here sees stopped and
+     * fails its own update.
+     */
+    private void stop() {
+        stopped = true;
+        long end = tail.get();
+        for (long next = head; next < end; next++) {
+            int slot = (int) next & mask;
+            while (published.get(slot) != next) {
+                Thread.yield(); //claimed but not yet published
+            }
+            slots[slot].done.completeExceptionally(new TicketManagerException("Storage writer is closed"));
+            slots[slot] = null;
+        }
+        head = end;
+    }
+
+    /**
+     * Writes a batch of updates with one storage update, followed by a flush if one was requested.
+     */
+    private void write(List<Update> batch) {
+        Map<String, Ticket> tickets = new LinkedHashMap<>();
+        int updates = 0;
+        boolean flush = false;
+        for (Update update : batch) {
+            if (update.tickets == null) {
+                flush = true;
+                continue;
+            }
+            for (Ticket ticket : update.tickets) {
+                tickets.put(ticket.getId(), ticket);
+                updates++;
+            }
+        }
+        TicketManagerException failure = null;
+        try {
+            storage.update(tickets.values());
+            if (flush) {
+                storage.flush();
+            }
+        } catch (TicketManagerException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new TicketManagerException(e);
+        }
+        if (updates > 0) {
+            metrics.storageBatch(updates, tickets.size());
+        }
+        grouped();
+
+        if (failure == null && storage.hasPendingUpdates()) {
+            unflushed.addAll(batch); //not yet durable
+            return;
+        }
+        complete(unflushed, failure);
+        unflushed.clear();
+        complete(batch, failure);
+    }
+
+    /**
+     * Flushes the updates the storage has grouped once the group window has passed. If the flush fails, the
+     * storage keeps the updates and they are flushed again after another window.
+     */
+    private void flushGroup() {
+        TicketManagerException failure = null;
+        try {
+            storage.flush();
+        } catch (TicketManagerException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new TicketManagerException(e);
+        }
+        if (failure != null) {
+            metrics.storageFlushFailed();
+            grouping = false; //starts another window
+        }
+        grouped();
+        complete(unflushed, failure);
+        unflushed.clear();
+    }
+
+    /**
+     * Starts the group window when the storage starts holding updates, and ends it once it holds none.
+     */
+    private void grouped() {
+        if (!storage.hasPendingUpdates()) {
+            grouping = false;
+        } else if (!grouping) {
+            grouping = true;
+            flushDue = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(storage.getGroupWindowMs());
+        }
+    }
+
+    /**
+     * Completes the futures of written updates and tells the listener.
+     */
+    private void complete(List<Update> batch, TicketManagerException failure) {
+        for (Update update : batch) {
+            for (int i = 0; update.tickets != null && written != null && i < update.tickets.size(); i++) {
+                written.accept(update.tickets.get(i).getId());
+            }
+            if (failure == null) {
+                update.done.complete(null);
+            } else {
+                update.done.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * A queued update of tickets, or a flush if the tickets are null.
+     */
+    private static class Update {
+        final List<Ticket> tickets;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Update(List<Ticket> tickets) {
+            this.tickets = tickets;
+        }
+    }
+}
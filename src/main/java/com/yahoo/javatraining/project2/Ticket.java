@@ -2,28 +2,65 @@ package com.yahoo.javatraining.project2;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class represents a ticket. Ticket objects are produced and consumed by the storage system.
+ * <p>
+ * Since the ticket manager keeps a Ticket object for every ticket, the state is packed: a hold transaction id in
+ * the canonical UUID format is kept as two longs, the timestamps as milliseconds relative to the time this class
+ * was loaded in an int, and the status as a byte. Timestamps are never written to the ticket file, so they only
+ * need to span the life of the process. Values that do not fit, such as other transaction ids, are kept in a
+ * separate object that is only allocated when needed, so every value is returned exactly as it was set.
+ * User ids are shared between tickets through a bounded cache.
  */
 public class Ticket {
-    private String id;
+    private static final TicketStatusCode[] STATUSES = TicketStatusCode.values();
 
-    private String userId;
+    // Origin of the packed timestamps.
+    private static final long EPOCH_MS = System.currentTimeMillis();
+
+    // Packed timestamp of a zero time.
+    private static final int NO_TIME = Integer.MIN_VALUE;
+
+    // Packed timestamp of a time kept in the overflow.
+    private static final int WIDE_TIME = Integer.MIN_VALUE + 1;
+
+    // Kinds of hold transaction id.
+    private static final byte NO_HOLD = 0;
+    private static final byte UUID_HOLD = 1;
+    private static final byte WIDE_HOLD = 2;
+
+    // Maximum number of user ids shared through the cache. The cache is cleared when it is full.
+    private static final int MAX_SHARED_USER_IDS = 1 << 16;
 
-    // Is non-null if the ticket is currently being held. Null otherwise.
-    private String holdTransId;
+    private static final ConcurrentHashMap<String, String> USER_IDS = new ConcurrentHashMap<>();
+
+    private final String id;
+
+    private String userId;
 
     // Set to non-null when the ticket is being purchased.
     private String buyTransId;
 
-    private TicketStatusCode status = TicketStatusCode.AVAILABLE;
+    // Values that do not fit in the packed fields, or null.
+    private Overflow overflow;
+
+    // The hold transaction id if it is a UUID.
+    private long holdMsb;
+    private long holdLsb;
 
     // Contains the time of the hold. If the ticket is not held, the value is 0.
-    private long holdTime;
+    private int holdTime = NO_TIME;
 
     // Contains the time when the ticket status became BUYING. If the ticket has not been purchased, the value is 0.
-    private long buyingTime;
+    private int buyingTime = NO_TIME;
+
+    private byte status;
+
+    // Is not NO_HOLD if the ticket is currently being held.
+    private byte hold = NO_HOLD;
 
     /**
      * Constructs a Ticket object with the unique ticket id.
@@ -54,7 +91,7 @@ public class Ticket {
     public
     @NotNull
     TicketStatusCode getStatus() {
-        return status;
+        return STATUSES[status];
     }
 
     /**
@@ -63,7 +100,7 @@ public class Ticket {
      * @param status A ticket status.
      */
     public void setStatus(@NotNull TicketStatusCode status) {
-        this.status = status;
+        this.status = (byte) status.ordinal();
     }
 
     /**
@@ -84,7 +121,7 @@ public class Ticket {
      * @param userId A user id.
      */
     public void setUserId(@Nullable String userId) {
-        this.userId = userId;
+        this.userId = userId == null ? null : share(userId);
     }
 
     /**
@@ -95,7 +132,33 @@ public class Ticket {
     public
     @Nullable
     String getHoldTransId() {
-        return holdTransId;
+        switch (hold) {
+            case UUID_HOLD:
+                return new UUID(holdMsb, holdLsb).toString();
+            case WIDE_HOLD:
+                return overflow.holdTransId;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns true if the ticket's hold transaction id equals the given one. A packed UUID is compared without
+     * converting it to a string.
+     *
+     * @param holdTransId A transaction id, or null.
+     * @return true if the transaction ids are equal.
+     */
+    public boolean holdTransIdEquals(@Nullable String holdTransId) {
+        switch (hold) {
+            case UUID_HOLD:
+                return holdTransId != null && holdTransId.length() == 36 && holdTransId.charAt(18) == '-'
+                        && hexEquals(holdTransId, 0, 18, holdMsb) && hexEquals(holdTransId, 19, 36, holdLsb);
+            case WIDE_HOLD:
+                return overflow.holdTransId.equals(holdTransId);
+            default:
+                return holdTransId == null;
+        }
     }
 
     /**
@@ -104,7 +167,20 @@ public class Ticket {
      * @param holdTransId A transaction id.
      */
     public void setHoldTransId(@Nullable String holdTransId) {
-        this.holdTransId = holdTransId;
+        UUID uuid = holdTransId == null ? null : uuid(holdTransId);
+        if (uuid != null) {
+            holdMsb = uuid.getMostSignificantBits();
+            holdLsb = uuid.getLeastSignificantBits();
+            hold = UUID_HOLD;
+        } else if (holdTransId != null) {
+            overflow().holdTransId = holdTransId;
+            hold = WIDE_HOLD;
+        } else {
+            hold = NO_HOLD;
+        }
+        if (hold != WIDE_HOLD && overflow != null) {
+            overflow.holdTransId = null;
+        }
     }
 
     /**
@@ -114,7 +190,7 @@ public class Ticket {
      * @return The hold timestamp.
      */
     public long getHoldTime() {
-        return holdTime;
+        return holdTime == WIDE_TIME ? overflow.holdTime : unpack(holdTime);
     }
 
     /**
@@ -123,7 +199,10 @@ public class Ticket {
      * @param holdTime Possibly-zero timestamp.
      */
     public void setHoldTime(long holdTime) {
-        this.holdTime = holdTime;
+        this.holdTime = pack(holdTime);
+        if (this.holdTime == WIDE_TIME) {
+            overflow().holdTime = holdTime;
+        }
     }
 
     /**
@@ -133,7 +212,7 @@ public class Ticket {
      * @return The buying time timestamp.
      */
     public long getBuyingTime() {
-        return buyingTime;
+        return buyingTime == WIDE_TIME ? overflow.buyingTime : unpack(buyingTime);
     }
 
     /**
@@ -142,7 +221,10 @@ public class Ticket {
      * @param buyingTime Possibly-zero timestamp.
      */
     public void setBuyingTime(long buyingTime) {
-        this.buyingTime = buyingTime;
+        this.buyingTime = pack(buyingTime);
+        if (this.buyingTime == WIDE_TIME) {
+            overflow().buyingTime = buyingTime;
+        }
     }
 
     /**
@@ -163,4 +245,85 @@ public class Ticket {
     public void setBuyTransId(@Nullable String buyTransId) {
         this.buyTransId = buyTransId;
     }
+
+    /**
+     * Returns the UUID if the transaction id is a UUID in canonical form, so that it can be restored exactly.
+     *
+     * @param transId A transaction id.
+     * @return A UUID, or null if the transaction id is not a canonical UUID.
+     */
+    static @Nullable UUID uuid(@NotNull String transId) {
+        if (transId.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(transId);
+            return uuid.toString().equals(transId) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compares a range of a UUID string with the bits it stands for, in the canonical form that UUID.toString()
+     * returns: lower case digits with dashes at indices 8, 13 and 23.
+     */
+    private static boolean hexEquals(String transId, int from, int to, long bits) {
+        int shift = 64;
+        for (int i = from; i < to; i++) {
+            char c = transId.charAt(i);
+            if (i == 8 || i == 13 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+                continue;
+            }
+            int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+            shift -= 4;
+            if (digit != ((bits >>> shift) & 0xf)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int pack(long time) {
+        if (time == 0) {
+            return NO_TIME;
+        }
+        long relative = time - EPOCH_MS;
+        return relative > WIDE_TIME && relative <= Integer.MAX_VALUE ? (int) relative : WIDE_TIME;
+    }
+
+    private static long unpack(int time) {
+        return time == NO_TIME ? 0 : EPOCH_MS + time;
+    }
+
+    private static String share(String userId) {
+        String shared = USER_IDS.get(userId);
+        if (shared != null) {
+            return shared;
+        }
+        if (USER_IDS.size() >= MAX_SHARED_USER_IDS) {
+            USER_IDS.clear();
+        }
+        shared = USER_IDS.putIfAbsent(userId, userId);
+        return shared == null ? userId : shared;
+    }
+
+    private Overflow overflow() {
+        if (overflow == null) {
+            overflow = new Overflow();
+        }
+        return overflow;
+    }
+
+    /**
+     * The values of a ticket that do not fit in its packed fields.
+     */
+    private static class Overflow {
+        String holdTransId;
+        long holdTime;
+        long buyingTime;
+    }
 }
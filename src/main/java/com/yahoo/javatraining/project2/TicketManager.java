@@ -1,18 +1,22 @@
 package com.yahoo.javatraining.project2;
 
+import com.yahoo.javatraining.project2.jfr.HoldExpiredEvent;
+import com.yahoo.javatraining.project2.jfr.TracedLock;
 import com.yahoo.javatraining.project2.util.Storage;
+import com.yahoo.javatraining.project2.util.TicketIndex;
 import com.yahoo.javatraining.project2.util.WebService;
 
 import javax.validation.constraints.NotNull;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author waynewu
@@ -30,17 +34,31 @@ import java.util.concurrent.locks.ReentrantLock;
 public class TicketManager {
 
     private Storage storage;
-    private WebService webservice;
+    private WebServiceCaller webservice;
+    private long expireTimeMs;
+    private TicketManagerOptions options;
+    private TransactionIdGenerator transactionIds; //creates hold transaction ids
+    private TicketManagerMetrics metrics = new TicketManagerMetrics();
     private AtomicInteger availableTickets; //available tickets (HELD + AVAILABLE)
     private int unBoughtTickets; //Unbought Tickets (!BOUGHT)
     private ExecutorService executor; //for executing webservice requests
+    private PurchaseLanes<BuyTask> lanes; //purchase calls waiting for the executor, by priority
+    private CircuitBreaker breaker; //guards the webservice
+    private Semaphore buySlots; //admission control for the executor (busy threads + queued buys)
+    private Semaphore recoverySlots; //the same for purchases recovered at startup, which do not take live slots
+    private Queue<Ticket> recoveries = new ConcurrentLinkedQueue<>(); //BUYING tickets waiting for a recovery slot
+    private ConcurrentHashMap<String, Integer> userBuys = new ConcurrentHashMap<>(); //purchases in progress per user
     private ScheduledExecutorService timer; //for timing and resetting expired held tickets
     private ExecutorService finisher; //for finishing the "buying" tickets
-    private BlockingQueue<Ticket> heldTickets;
-    private HashMap<String, Ticket> tickets;
-    private Lock global = new ReentrantLock(); //Global lock (tickets)
-    private Lock storage_lock = new ReentrantLock(); //Storage's lock
-    private Lock count = new ReentrantLock(); //Count lock
+    private BlockingQueue<Hold> heldTickets;
+    private List<String> unwritten = new ArrayList<>(); //tickets released by a sweep whose write failed (timer thread)
+    private HashMap<String, Deque<Waiter>> waitlists = new HashMap<>(); //users waiting for held tickets (global lock)
+    private TicketStore tickets; //in-memory ticket state (global lock)
+    private LazyTicketStore lazy; //same as tickets if tickets are loaded lazily, otherwise null
+    private UserTickets userTickets = new UserTickets(); //tickets of each user (global lock)
+    private Lock global = new TracedLock("global"); //Global lock (tickets)
+    private StorageWriter writer; //the only thread that touches the storage after construction
+    private Lock count = new TracedLock("count"); //Count lock
     private Condition condition = count.newCondition();
 
     /**
@@ -51,36 +69,80 @@ public class TicketManager {
      */
     public TicketManager(long expireTimeMs, @NotNull Storage storage, @NotNull WebService webservice)
             throws TicketManagerException {
+        this(expireTimeMs, storage, webservice, new TicketManagerOptions());
+    }
+
+    /**
+     * Constructs a ticket manager with explicit tuning options.
+     *
+     * @param expireTimeMs The time after which a held ticket is automatically cancelled.
+     * @param storage      A storage instance for storing updates to the tickets.
+     * @param webservice   A service instance to use for purchases.
+     * @param options      Tuning options.
+     */
+    public TicketManager(long expireTimeMs, @NotNull Storage storage, @NotNull WebService webservice,
+                         @NotNull TicketManagerOptions options) throws TicketManagerException {
         this.storage = storage;
-        this.webservice = webservice;
-        this.executor = Executors.newFixedThreadPool(5);
+        this.webservice = new WebServiceCaller(webservice, options, metrics);
+        this.expireTimeMs = expireTimeMs;
+        this.options = options;
+        this.transactionIds = options.getTransactionIdGenerator();
+        int threads = options.getBuyThreads();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, 2 * options.getMaxQueuedBuys() + threads)));
+        this.buySlots = new Semaphore(threads + options.getMaxQueuedBuys());
+        this.recoverySlots = new Semaphore(threads + options.getMaxQueuedBuys());
+        this.lanes = new PurchaseLanes<>(options, metrics);
         this.timer = Executors.newScheduledThreadPool(1);
+        this.breaker = new CircuitBreaker(options, timer, metrics);
         this.finisher = Executors.newCachedThreadPool();
         this.heldTickets = new LinkedBlockingQueue<>();
-        this.tickets = new HashMap<>();
-
-        availableTickets=new AtomicInteger();
-        unBoughtTickets=0;
-        for(Ticket tik : storage.getTickets()){
-            tickets.put(tik.getId(), tik);
-            if(tik.getStatus()==TicketStatusCode.HELD || tik.getStatus()==TicketStatusCode.AVAILABLE){
-                availableTickets.incrementAndGet();
+        TicketIndex index = null;
+        if(options.isLazyLoad()){
+            if(options.isOffHeapStore()){
+                throw new IllegalArgumentException("Lazy loading cannot be combined with the off-heap store");
             }
-            if(tik.getStatus()!=TicketStatusCode.BOUGHT){
-                unBoughtTickets++;
+            //only the counts are read up front; tickets are read from the file on first access
+            index = storage.openIndex();
+            this.lazy = new LazyTicketStore(index);
+        }
+        //recovered purchases may finish and write their tickets while the rest are still loaded
+        this.writer = new StorageWriter(storage, options.getStorageQueueSize(), metrics, lazy == null ? null : lazy::written);
+        metrics.storageWriter(writer);
+        if(lazy != null){
+            this.tickets = lazy;
+            availableTickets=new AtomicInteger(index.count(TicketStatusCode.AVAILABLE)+index.count(TicketStatusCode.HELD));
+            unBoughtTickets=index.size()-index.count(TicketStatusCode.BOUGHT);
+            lazy.trackChanges(true);
+            finisher.submit(new ResumeTask(index));
+            metrics.lazyStore(lazy);
+        }else{
+            List<Ticket> stored = storage.getTickets();
+            this.tickets = options.isOffHeapStore() ? new OffHeapTicketStore(stored.size()) : new HeapTicketStore(stored.size());
+
+            availableTickets=new AtomicInteger();
+            unBoughtTickets=0;
+            long now = System.currentTimeMillis();
+            for(Ticket tik : stored){
+                if(tik.getStatus()==TicketStatusCode.HELD){
+                    tik.setHoldTime(now); //holds taken over from a previous instance get a full expiry period
+                }
+                tickets.put(tik);
+                userTickets.add(tik);
+                if(tik.getStatus()==TicketStatusCode.HELD || tik.getStatus()==TicketStatusCode.AVAILABLE){
+                    availableTickets.incrementAndGet();
+                }
+                if(tik.getStatus()!=TicketStatusCode.BOUGHT){
+                    unBoughtTickets++;
+                }
             }
-            if(tik.getStatus()==TicketStatusCode.BUYING){
-                finisher.submit(()->{
-                    try{
-                        buy(tik);
-                        //System.out.printf("Completed purchase on ticket %s\n", tik.getId());
-                    }catch(TicketManagerException|InterruptedException e){
-                        throw new IllegalStateException();
-                    }
-                });
+            //only now, since recovered purchases finish concurrently and update the store and the counts
+            for(Ticket tik : stored){
+                resume(tik);
             }
         }
-        long period = (expireTimeMs*1000)/tickets.size();
+        metrics.storage(storage);
+        long period = Math.max(1, (expireTimeMs*1000)/Math.max(1, tickets.size()));
         timer.scheduleAtFixedRate(new ResetTask(expireTimeMs), period, period , TimeUnit.MICROSECONDS);
     }
 
@@ -91,14 +153,83 @@ public class TicketManager {
      * @throws InterruptedException If the shutdown was interrupted.
      */
     public void shutdown() throws InterruptedException {
-        //Shut down all tasks
+        //Shut down all tasks; parked and delayed purchases are refused by the executor and fail
         executor.shutdown();
+        webservice.shutdown();
+        breaker.shutdown();
         timer.shutdown();
+
+        //Wait for the tasks that may still submit updates; the finisher takes the results of the executor
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        timer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         finisher.shutdown();
+        finisher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        //Write out updates still queued or pending in the storage
+        CompletableFuture<Void> flushed = writer.close();
+        if(lazy != null){
+            storage.closeIndex();
+        }
+        try{
+            flushed.join();
+        }catch(CompletionException e){
+            throw new IllegalStateException(e.getCause());
+        }
     }
 
+    /**
+     * Returns all the tickets. With the default in-memory store the returned tickets are live and reflect later
+     * state changes; with the off-heap store they are snapshots taken at the time of the call.
+     * This method is thread-safe.
+     *
+     * @return List of Ticket objects.
+     */
     public List<Ticket> tickets() {
-        return new ArrayList<>(tickets.values());
+        global.lock();
+        try{
+            return tickets.tickets();
+        }finally{
+            global.unlock();
+        }
+    }
+
+    /**
+     * Returns the tickets the user holds, is buying or has bought: first the held tickets in the order in which they
+     * were held, then the others. The tickets are found through an index by user rather than a scan; when tickets
+     * are loaded lazily, tickets from the ticket file are added to the index by a background scan after startup.
+     * This method is thread-safe.
+     *
+     * @param userId A user id.
+     * @return Snapshots of the tickets, taken at the time of the call.
+     */
+    public
+    @NotNull
+    List<Ticket> ticketsOf(@NotNull String userId) {
+        global.lock();
+        try{
+            List<Ticket> results = new ArrayList<>();
+            for(String ticketId : userTickets.ticketIds(userId)){
+                results.add(Storage.copy(tickets.get(ticketId)));
+            }
+            return results;
+        }finally{
+            global.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tickets the user currently holds. This method is thread-safe.
+     *
+     * @param userId A user id.
+     * @return A ticket count.
+     */
+    public int holdCount(@NotNull String userId) {
+        global.lock();
+        try{
+            return userTickets.holds(userId);
+        }finally{
+            global.unlock();
+        }
     }
 
     /**
@@ -112,6 +243,31 @@ public class TicketManager {
         return availableTickets.get();
     }
 
+    /**
+     * Returns the state of the circuit breaker guarding the purchase webservice. While the circuit is OPEN, new
+     * purchases are rejected and tickets already in the BUYING state are completed once the circuit closes.
+     * This method is thread-safe.
+     *
+     * @return A circuit state.
+     */
+    public
+    @NotNull
+    CircuitState circuitState() {
+        return breaker.state();
+    }
+
+    /**
+     * Returns the live metrics of this ticket manager.
+     * This method is thread-safe.
+     *
+     * @return The metrics instance.
+     */
+    public
+    @NotNull
+    TicketManagerMetrics metrics() {
+        return metrics;
+    }
+
     /**
      * Holds the ticket. More specifically, sets the status to be HELD, generates a hold transaction id, and sets
      * the hold time. This method is thread-safe.
@@ -126,38 +282,129 @@ public class TicketManager {
     public
     @NotNull
     String hold(@NotNull String userId, @NotNull String ticketId) throws TicketManagerException {
-        Ticket ticket = tickets.get(ticketId);
-        if(ticket.getStatus() == TicketStatusCode.BOUGHT){
-            throw new TicketManagerException("Ticket is no longer available");
-        }else if(ticket.getStatus() == TicketStatusCode.BUYING){
-            throw new TicketManagerException("Ticket is being purchased by another user");
-        }else if(ticket.getStatus() == TicketStatusCode.HELD){
-            if(ticket.getUserId()!=null && !userId.equals(ticket.getUserId())){
-                throw new TicketManagerException("Ticket is held by another user");
-            }else{
-                return ticket.getHoldTransId();
+        Ticket ticket;
+        String txId;
+        global.lock();
+        try{
+            ticket = ticket(ticketId);
+            txId = currentHold(ticket, userId);
+            if(txId != null){
+                return txId;
             }
+            checkHoldLimit(userId);
+            txId = grant(ticket, userId);
+        }finally{
+            global.unlock();
         }
 
+        update(ticket);
+        heldTickets.add(new Hold(ticket.getId(), txId));
+
+        return txId;
+    }
+
+    /**
+     * Holds any AVAILABLE ticket for the user. The ticket store is searched round-robin, so tickets are handed out
+     * in file order, starting again from the beginning once the end is reached. This method is thread-safe.
+     *
+     * @param userId A user id.
+     * @return A snapshot of the held ticket, including its hold transaction id.
+     * @throws TicketManagerException Is thrown if no ticket is AVAILABLE.
+     */
+    public
+    @NotNull
+    Ticket holdAny(@NotNull String userId) throws TicketManagerException {
+        Ticket ticket;
+        Ticket held;
+        String txId;
         global.lock();
         try{
-            ticket.setUserId(userId);
-            ticket.setStatus(TicketStatusCode.HELD);
-            ticket.setHoldTime(System.currentTimeMillis());
-            ticket.setHoldTransId(UUID.randomUUID().toString());
+            checkHoldLimit(userId);
+            String ticketId = tickets.nextAvailable();
+            if(ticketId == null){
+                throw new TicketManagerException("No tickets are available");
+            }
+            ticket = ticket(ticketId);
+            txId = grant(ticket, userId);
+            held = new Ticket(ticket.getId());
+            held.setStatus(TicketStatusCode.HELD);
+            held.setUserId(userId);
+            held.setHoldTransId(txId);
+            held.setHoldTime(ticket.getHoldTime());
         }finally{
             global.unlock();
         }
 
         update(ticket);
+        heldTickets.add(new Hold(ticket.getId(), txId));
+
+        return held;
+    }
 
+    /**
+     * Holds the ticket, waiting for it if it is currently held by another user. Waiting users are served in
+     * FIFO order: when the current hold is cancelled or expires, the hold passes directly to the next waiting
+     * user without the ticket becoming AVAILABLE in between. This method is thread-safe.
+     * <p>
+     * The hold trans id is returned if the ticket is already being held by the user.
+     *
+     * @param userId    A user id.
+     * @param ticketId  A ticket id.
+     * @param timeoutMs The maximum time to wait for the ticket.
+     * @return A hold transaction id.
+     * @throws TicketManagerException Is thrown if the ticket is purchased or the timeout elapses before the hold
+     *                                could be obtained.
+     * @throws InterruptedException   If the thread is interrupted while waiting.
+     */
+    public
+    @NotNull
+    String holdWhenAvailable(@NotNull String userId, @NotNull String ticketId, long timeoutMs)
+            throws TicketManagerException, InterruptedException {
+        Ticket ticket;
+        String txId;
+        Waiter waiter = null;
+        global.lock();
         try{
-            heldTickets.put(ticket);
-        }catch(InterruptedException e){
-            throw new TicketManagerException(e.getMessage());
+            ticket = ticket(ticketId);
+            if(ticket.getStatus() == TicketStatusCode.HELD && !userId.equals(ticket.getUserId())){
+                checkHoldLimit(userId);
+                waiter = new Waiter(userId);
+                waitlists.computeIfAbsent(ticketId, k -> new ArrayDeque<>()).add(waiter);
+                userTickets.waiting(userId); //counts against the hold limit until the wait ends
+                txId = null;
+            }else{
+                txId = currentHold(ticket, userId);
+                if(txId != null){
+                    return txId;
+                }
+                checkHoldLimit(userId);
+                txId = grant(ticket, userId);
+            }
+        }finally{
+            global.unlock();
+        }
+
+        if(waiter == null){
+            update(ticket);
+            heldTickets.add(new Hold(ticket.getId(), txId));
+            return txId;
         }
 
-        return ticket.getHoldTransId();
+        try{
+            return waiter.hold.get(timeoutMs, TimeUnit.MILLISECONDS);
+        }catch(TimeoutException e){
+            if(abandon(ticketId, waiter)){
+                throw new TicketManagerException("Ticket is still held by another user");
+            }
+            return granted(waiter); //the hold was handed over just as the wait timed out
+        }catch(InterruptedException e){
+            if(!abandon(ticketId, waiter)){
+                cancel(userId, ticketId, granted(waiter));
+            }
+            throw e;
+        }catch(ExecutionException e){
+            throw waitFailure(e);
+        }
     }
 
     /**
@@ -165,6 +412,9 @@ public class TicketManager {
      * hold time is cleared. The userId and holdTransId must match the persisted values or the cancel will fail.
      * This method is thread-safe.
      * <p>
+     * If other users are waiting for the ticket in holdWhenAvailable(), the ticket is instead held for the first
+     * of them, and the new hold is persisted in a single update.
+     * <p>
      * Returns false if the ticket has already been cancelled.
      *
      * @param userId      A user id.
@@ -174,32 +424,28 @@ public class TicketManager {
      * @throws TicketManagerException Is thrown if the cancel fails.
      */
     public boolean cancel(@NotNull String userId, @NotNull String ticketId, @NotNull String holdTransId) throws TicketManagerException {
-        Ticket ticket = tickets.get(ticketId);
-        if(ticket.getStatus()==TicketStatusCode.AVAILABLE && ticket.getHoldTransId() == null){
-            return true;
-        }else if(ticket.getStatus()==TicketStatusCode.BUYING){
-            throw new TicketManagerException("Ticket is being purchased");
-        }else if(ticket.getStatus()==TicketStatusCode.BOUGHT){
-            throw new TicketManagerException("Ticket is already purchased");
-        }
-        if(!userId.equals(ticket.getUserId())){
-            throw new TicketManagerException("User ID does not match");
-        }
-        if(!holdTransId.equals(ticket.getHoldTransId())){
-            throw new TicketManagerException("Hold Transaction ID does not match");
-        }
-
+        Ticket ticket;
+        Waiter next;
+        String nextTxId = null;
         global.lock();
-        try {
-            ticket.setStatus(TicketStatusCode.AVAILABLE);
-            ticket.setHoldTransId(null);
-            ticket.setHoldTime(0);
-            ticket.setUserId(null);
+        try{
+            ticket = ticket(ticketId);
+            if(ticket.getStatus()==TicketStatusCode.AVAILABLE && ticket.getHoldTransId() == null){
+                return true;
+            }
+            checkHold(ticket, userId, holdTransId);
+            if(ticket.getStatus()==TicketStatusCode.BUYING){
+                throw new TicketManagerException("Ticket is being purchased");
+            }
+            next = release(ticket);
+            if(next != null){
+                nextTxId = ticket.getHoldTransId();
+            }
         }finally{
             global.unlock();
         }
 
-        update(ticket);
+        handOver(ticket, next, nextTxId);
 
         return true;
     }
@@ -208,6 +454,11 @@ public class TicketManager {
      * Buys a held ticket. The ticket's state becomes BOUGHT and the buy transaction id is set.
      * The userId and holdTransId must match the persisted values or the buy will fail.
      * This method is thread-safe.
+     * <p>
+     * The purchase is rejected without changing the ticket if the circuit breaker guarding the webservice is open,
+     * if the purchase pipeline is full, if the user already has too many purchases in progress, or if the purchase
+     * is not expected to leave the queue before the hold expires.
+     * In these cases the exception carries a retry-after hint and the ticket remains held.
      *
      * @param userId      A user id.
      * @param ticketId    A ticket id.
@@ -219,123 +470,588 @@ public class TicketManager {
     @NotNull
     String buy(@NotNull String userId, @NotNull String ticketId, @NotNull String holdTransId)
             throws TicketManagerException, InterruptedException {
+        return await(buyAsync(userId, ticketId, holdTransId));
+    }
+
+    /**
+     * Starts the purchase of a held ticket without waiting for the webservice. The ticket is persisted in the
+     * BUYING state before this method returns; the returned future completes once the ticket is BOUGHT.
+     * The same validation and admission control as buy() apply. This method is thread-safe.
+     *
+     * @param userId      A user id.
+     * @param ticketId    A ticket id.
+     * @param holdTransId A hold transaction id.
+     * @return A future of the buy transaction id.
+     * @throws TicketManagerException Is thrown if the purchase is invalid or rejected.
+     */
+    public
+    @NotNull
+    CompletableFuture<String> buyAsync(@NotNull String userId, @NotNull String ticketId, @NotNull String holdTransId)
+            throws TicketManagerException {
+        Ticket ticket;
+        global.lock();
+        try{
+            ticket = ticket(ticketId);
+            checkHold(ticket, userId, holdTransId);
+        }finally{
+            global.unlock();
+        }
+
+        admit(ticket, userId);
+        CompletableFuture<String> result;
+        try{
+            boolean buying;
+            Deque<Waiter> waiters = null;
+            global.lock();
+            try{
+                ticket = ticket(ticketId);
+                checkHold(ticket, userId, holdTransId);
+                buying = ticket.getStatus()!=TicketStatusCode.BUYING;
+                if(buying){
+                    ticket.setStatus(TicketStatusCode.BUYING);
+                    ticket.setBuyingTime(System.currentTimeMillis());
+                    tickets.put(ticket);
+                    userTickets.owned(userId, ticketId);
+                    waiters = waitlists.remove(ticketId);
+                    if(waiters != null){
+                        for(Waiter waiter : waiters){
+                            userTickets.stoppedWaiting(waiter.userId);
+                        }
+                    }
+                }
+            }finally{
+                global.unlock();
+            }
+
+            if(buying){
+                availableTickets.decrementAndGet();
+                update(ticket);
+                if(waiters != null){
+                    for(Waiter waiter : waiters){
+                        waiter.hold.completeExceptionally(new TicketManagerException("Ticket is no longer available"));
+                    }
+                }
+            }
+
+            result = purchase(ticket, PurchaseLane.LIVE);
+        }catch(TicketManagerException|RuntimeException e){
+            metrics.buyFinished();
+            buySlots.release();
+            release(userId);
+            throw e;
+        }
+
+        return result.whenComplete((buyId, e) -> {
+            metrics.buyFinished();
+            buySlots.release();
+            release(userId);
+        });
+    }
+
+    /**
+     * Blocks until all tickets are in the BOUGHT state.
+     * The caller should not shutdown this instance until this method returns.
+     * This method is thread-safe.
+     *
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public void awaitAllBought() throws InterruptedException {
+        count.lock();
+        try {
+            if (unBoughtTickets > 0) {
+                condition.await();
+            }
+        }finally{
+            count.unlock();
+        }
+    }
+
+    /**
+     * Writes the state of the ticket through the storage writer and waits until it is written.
+     */
+    private void update(@NotNull Ticket ticket) throws TicketManagerException{
+        written(writer.submit(ticket));
+    }
+
+    /**
+     * Writes the state of the tickets with one storage write and waits until it is written.
+     */
+    private void update(@NotNull List<Ticket> tickets) throws TicketManagerException{
+        written(writer.submit(tickets));
+    }
+
+    private static void written(@NotNull CompletableFuture<Void> write) throws TicketManagerException{
+        try{
+            write.join();
+        }catch(CompletionException e){
+            if(e.getCause() instanceof TicketManagerException){
+                throw (TicketManagerException) e.getCause();
+            }
+            throw new TicketManagerException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the ticket with the given id. Must be called with the global lock held, and changes to the ticket
+     * must be written back to the ticket store before the lock is released.
+     */
+    private Ticket ticket(@NotNull String ticketId) throws TicketManagerException{
         Ticket ticket = tickets.get(ticketId);
+        if(ticket == null){
+            throw new TicketManagerException("Ticket does not exist");
+        }
+        return ticket;
+    }
+
+    /**
+     * Returns the user's hold transaction id if the user already holds the ticket, or null if the ticket is
+     * AVAILABLE. Must be called with the global lock held.
+     */
+    private String currentHold(@NotNull Ticket ticket, @NotNull String userId) throws TicketManagerException{
+        if(ticket.getStatus() == TicketStatusCode.BOUGHT){
+            throw new TicketManagerException("Ticket is no longer available");
+        }else if(ticket.getStatus() == TicketStatusCode.BUYING){
+            throw new TicketManagerException("Ticket is being purchased by another user");
+        }else if(ticket.getStatus() == TicketStatusCode.HELD){
+            if(ticket.getUserId()!=null && !userId.equals(ticket.getUserId())){
+                throw new TicketManagerException("Ticket is held by another user");
+            }
+            return ticket.getHoldTransId();
+        }
+        return null;
+    }
 
+    /**
+     * Verifies that the ticket is held or being bought under the given hold. Must be called with the global
+     * lock held.
+     */
+    private void checkHold(@NotNull Ticket ticket, @NotNull String userId, @NotNull String holdTransId)
+            throws TicketManagerException{
         if(ticket.getStatus() == TicketStatusCode.AVAILABLE){
             throw new TicketManagerException("Ticket must first be held");
         }else if(ticket.getStatus() == TicketStatusCode.BOUGHT){
             throw new TicketManagerException("Ticket is already purchased");
         }
-
         if(!userId.equals(ticket.getUserId())){
             throw new TicketManagerException("User ID does not match");
         }
-        if(!holdTransId.equals(ticket.getHoldTransId())){
+        if(!ticket.holdTransIdEquals(holdTransId)){
             throw new TicketManagerException("Hold Transaction ID does not match");
         }
+    }
 
-        if(ticket.getStatus()!=TicketStatusCode.BUYING){
-            global.lock();
-            try{
-                ticket.setStatus(TicketStatusCode.BUYING);
-                ticket.setBuyingTime(System.currentTimeMillis());
-            }finally{
-                global.unlock();
-            }
+    /**
+     * Rejects a new hold or wait if the user already holds or waits for the maximum number of tickets. Waits
+     * count, since a waiter receives the hold without another check. Must be called with the global lock held.
+     */
+    private void checkHoldLimit(@NotNull String userId) throws TicketManagerException{
+        if(userTickets.holds(userId) + userTickets.waits(userId) >= options.getMaxHoldsPerUser()){
+            metrics.holdRejectedUserLimit();
+            throw new TicketManagerException("User holds too many tickets");
+        }
+    }
 
-            availableTickets.decrementAndGet();
-            update(ticket);
+    /**
+     * Puts the ticket on hold for the user. Must be called with the global lock held.
+     */
+    private String grant(@NotNull Ticket ticket, @NotNull String userId){
+        String txId = transactionIds.next();
+        ticket.setUserId(userId);
+        ticket.setStatus(TicketStatusCode.HELD);
+        ticket.setHoldTime(System.currentTimeMillis());
+        ticket.setHoldTransId(txId);
+        tickets.put(ticket);
+        userTickets.held(userId, ticket.getId());
+        return txId;
+    }
 
+    /**
+     * Ends the current hold. The ticket is held for the first waiting user if there is one, and becomes
+     * AVAILABLE otherwise. Must be called with the global lock held.
+     *
+     * @return The waiting user who now holds the ticket, or null.
+     */
+    private Waiter release(@NotNull Ticket ticket){
+        userTickets.released(ticket.getUserId(), ticket.getId());
+        Deque<Waiter> waiters = waitlists.get(ticket.getId());
+        Waiter next = waiters == null ? null : waiters.poll();
+        if(waiters != null && waiters.isEmpty()){
+            waitlists.remove(ticket.getId());
+        }
+        if(next != null){
+            userTickets.stoppedWaiting(next.userId);
+            grant(ticket, next.userId);
+        }else{
+            ticket.setStatus(TicketStatusCode.AVAILABLE);
+            ticket.setHoldTransId(null);
+            ticket.setHoldTime(0);
+            ticket.setUserId(null);
+            tickets.put(ticket);
+        }
+        return next;
+    }
+
+    /**
+     * Persists the outcome of release() and notifies the waiting user who received the hold, if any.
+     */
+    private void handOver(@NotNull Ticket ticket, Waiter next, String nextTxId) throws TicketManagerException{
+        try{
+            update(ticket);
+        }catch(TicketManagerException e){
+            if(next != null){
+                next.hold.completeExceptionally(e);
+            }
+            throw e;
+        }
+        handedOver(ticket, next, nextTxId);
+    }
 
+    /**
+     * Notifies the waiting user who received the hold of a released ticket, if any, once it is persisted.
+     */
+    private void handedOver(@NotNull Ticket ticket, Waiter next, String nextTxId){
+        if(next != null){
+            heldTickets.add(new Hold(ticket.getId(), nextTxId));
+            metrics.holdHandedOver();
+            next.hold.complete(nextTxId);
         }
+    }
 
-        Future<String> future = executor.submit(new BuyTask(ticketId, userId));
-        String buyId;
+    /**
+     * Removes a waiter from the waitlist of a ticket.
+     *
+     * @return false if the waiter is no longer waiting because the hold was handed over to it.
+     */
+    private boolean abandon(@NotNull String ticketId, @NotNull Waiter waiter){
+        global.lock();
         try{
-            buyId = future.get();
-        }catch(IllegalStateException|ExecutionException e) {
-            throw new TicketManagerException("Purchase Failed...");
+            Deque<Waiter> waiters = waitlists.get(ticketId);
+            if(waiters == null || !waiters.remove(waiter)){
+                return false;
+            }
+            userTickets.stoppedWaiting(waiter.userId);
+            if(waiters.isEmpty()){
+                waitlists.remove(ticketId);
+            }
+            return true;
+        }finally{
+            global.unlock();
         }
+    }
 
-        if(buyId!=null){
-            global.lock();
-            try {
-                ticket.setStatus(TicketStatusCode.BOUGHT);
-                ticket.setBuyTransId(buyId);
-            }finally{
-                global.unlock();
+    /**
+     * Waits for the outcome of a hold that was handed over to a waiter that is no longer waiting.
+     */
+    private String granted(@NotNull Waiter waiter) throws TicketManagerException{
+        boolean interrupted = false;
+        try{
+            while(true){
+                try{
+                    return waiter.hold.get();
+                }catch(InterruptedException e){
+                    interrupted = true;
+                }catch(ExecutionException e){
+                    throw waitFailure(e);
+                }
             }
+        }finally{
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-            update(ticket);
+    private static TicketManagerException waitFailure(@NotNull ExecutionException e){
+        if(e.getCause() instanceof TicketManagerException){
+            return (TicketManagerException) e.getCause();
+        }
+        return new TicketManagerException(e.getCause());
+    }
 
-            count.lock();
-            try {
-                unBoughtTickets--;
-                if (unBoughtTickets == 0) {
-                    condition.signal();
+    /**
+     * Cancels holds that have expired, persisting all the cancellations with one storage write. Holds that are
+     * no longer current are skipped. The tickets released by an earlier sweep whose write failed are written with
+     * them, in their current state; if the write fails again, all of them are kept for the next sweep.
+     */
+    private void expire(@NotNull List<Hold> holds) throws TicketManagerException{
+        List<Expiry> expired = new ArrayList<>();
+        List<Ticket> released = new ArrayList<>();
+        global.lock();
+        try{
+            for(String ticketId : unwritten){
+                released.add(ticket(ticketId));
+            }
+            for(Hold hold : holds){
+                Ticket ticket = ticket(hold.ticketId);
+                if(ticket.getStatus() != TicketStatusCode.HELD || !ticket.holdTransIdEquals(hold.holdTransId)){
+                    continue;
                 }
-            }finally {
-                count.unlock();
+                HoldExpiredEvent event = new HoldExpiredEvent();
+                if(event.shouldCommit()){
+                    event.ticketId = ticket.getId();
+                    event.userId = ticket.getUserId();
+                    event.heldMs = System.currentTimeMillis() - ticket.getHoldTime();
+                }
+                Waiter next = release(ticket);
+                expired.add(new Expiry(ticket, next, next == null ? null : ticket.getHoldTransId(), event));
             }
+        }finally{
+            global.unlock();
+        }
+        if(released.isEmpty() && expired.isEmpty()){
+            return;
         }
 
-        return buyId;
+        for(Expiry expiry : expired){
+            released.add(expiry.ticket);
+        }
+        try{
+            update(released);
+        }catch(TicketManagerException e){
+            unwritten = new ArrayList<>();
+            for(Ticket ticket : released){
+                unwritten.add(ticket.getId());
+            }
+            for(Expiry expiry : expired){
+                if(expiry.next != null){
+                    expiry.next.hold.completeExceptionally(e);
+                }
+            }
+            throw e;
+        }
+        unwritten.clear();
+        for(Expiry expiry : expired){
+            handedOver(expiry.ticket, expiry.next, expiry.nextTxId);
+            expiry.event.handedOver = expiry.next != null;
+            expiry.event.commit();
+        }
+        metrics.holdsExpired(expired.size());
     }
 
     /**
-     * Blocks until all tickets are in the BOUGHT state.
-     * The caller should not shutdown this instance until this method returns.
-     * This method is thread-safe.
-     *
-     * @throws InterruptedException If the thread is interrupted.
+     * Resumes a ticket left HELD or BUYING by a previous instance: queues its hold for expiry or finishes its
+     * purchase. The hold time must already have been reset. Must be called with the global lock held, or from the
+     * constructor once all tickets are loaded.
      */
-    public void awaitAllBought() throws InterruptedException {
-        count.lock();
+    private void resume(@NotNull Ticket tik){
+        if(tik.getStatus()==TicketStatusCode.HELD){
+            heldTickets.add(new Hold(tik.getId(), tik.getHoldTransId()));
+        }else if(tik.getStatus()==TicketStatusCode.BUYING){
+            recoveries.add(tik);
+            recoverNext();
+        }
+    }
+
+    /**
+     * Finishes the purchases of tickets found in the BUYING state at startup, as recovery slots become free.
+     * Recovered purchases have their own slots, so they neither take the slots of live purchases nor count in
+     * the queue wait estimated for them, and no thread waits for a slot.
+     */
+    private void recoverNext(){
+        while(!recoveries.isEmpty() && recoverySlots.tryAcquire()){
+            Ticket tik = recoveries.poll();
+            if(tik == null){
+                recoverySlots.release(); //taken concurrently
+                continue;
+            }
+            purchase(tik, PurchaseLane.RECOVERY).whenComplete((buyId, e) -> {
+                recoverySlots.release(); //if the purchase failed, the ticket stays BUYING for the next restart
+                recoverNext();
+            });
+        }
+    }
+
+    /**
+     * Reserves a slot in the purchase pipeline for the user, or fails fast if the purchase cannot be served in time.
+     */
+    private void admit(@NotNull Ticket ticket, @NotNull String userId) throws TicketManagerException{
+        if(breaker.state() == CircuitState.OPEN){
+            metrics.buyRejectedOverload();
+            throw new TicketManagerException("Purchase service is unavailable", Math.max(1, breaker.remainingOpenMs()));
+        }
+
+        long avgLatency = (long) Math.ceil(metrics.getBuyLatencyAvgMs());
+        int threads = options.getBuyThreads();
+        long queueWait = (long) metrics.getLaneQueued(PurchaseLane.LIVE) / threads * avgLatency; //live calls ahead
+
+        if(ticket.getStatus() == TicketStatusCode.HELD && ticket.getHoldTime() > 0){
+            long deadline = ticket.getHoldTime() + expireTimeMs;
+            if(System.currentTimeMillis() + queueWait > deadline){
+                metrics.buyRejectedDeadline();
+                throw new TicketManagerException("Purchase cannot start before the hold expires",
+                        Math.max(1, queueWait));
+            }
+        }
+
+        int inProgress = userBuys.merge(userId, 1, Integer::sum);
+        if(inProgress > options.getMaxBuysPerUser()){
+            release(userId);
+            metrics.buyRejectedUserLimit();
+            throw new TicketManagerException("User has too many purchases in progress", Math.max(1, avgLatency));
+        }
+        if(!buySlots.tryAcquire()){
+            release(userId);
+            metrics.buyRejectedOverload();
+            throw new TicketManagerException("Purchase pipeline is full", Math.max(1, queueWait));
+        }
+        metrics.buyAdmitted();
+        metrics.buyStarted();
+    }
+
+    /**
+     * Returns the per-user slot reserved by admit().
+     */
+    private void release(@NotNull String userId){
+        userBuys.computeIfPresent(userId, (k, v) -> v == 1 ? null : v - 1);
+    }
+
+    /**
+     * Calls the webservice for a ticket in the BUYING state. The returned future completes once the ticket is
+     * marked BOUGHT.
+     */
+    private CompletableFuture<String> purchase(@NotNull Ticket ticket, @NotNull PurchaseLane lane){
+        BuyTask task = new BuyTask(ticket.getId(), ticket.getUserId(), lane);
+        dispatch(task);
+        return task.result.thenApplyAsync(buyId -> {
+            try{
+                bought(ticket.getId(), buyId);
+                return buyId;
+            }catch(TicketManagerException e){
+                throw new CompletionException(e);
+            }
+        }, finisher);
+    }
+
+    /**
+     * Queues a purchase call in its lane. The executor runs whichever call is due when a thread becomes free.
+     */
+    private void dispatch(@NotNull BuyTask task){
+        lanes.add(task.lane, task);
+        try{
+            executor.execute(()->{
+                BuyTask next = lanes.next();
+                if(next != null){
+                    next.run();
+                }
+            });
+        }catch(RejectedExecutionException e){
+            BuyTask orphan = lanes.next(); //one call more than the executor will run
+            if(orphan != null){
+                orphan.result.completeExceptionally(e); //shutting down; the ticket stays BUYING
+            }
+        }
+    }
+
+    /**
+     * Marks a ticket BOUGHT once the webservice has confirmed the purchase.
+     */
+    private void bought(@NotNull String ticketId, @NotNull String buyId) throws TicketManagerException{
+        Ticket ticket;
+        global.lock();
         try {
-            if (unBoughtTickets > 0) {
-                condition.await();
+            ticket = ticket(ticketId);
+            if(ticket.getStatus() != TicketStatusCode.BUYING){
+                return; //completed concurrently by another call
             }
+            ticket.setStatus(TicketStatusCode.BOUGHT);
+            ticket.setBuyTransId(buyId);
+            tickets.put(ticket);
         }finally{
-            count.unlock();
+            global.unlock();
         }
-    }
 
-    private void update(@NotNull Ticket ticket) throws TicketManagerException{
-        storage_lock.lock();
+        update(ticket);
+
+        count.lock();
         try {
-            storage.update(ticket);
+            unBoughtTickets--;
+            if (unBoughtTickets == 0) {
+                condition.signal();
+            }
         }finally {
-            storage_lock.unlock();
+            count.unlock();
         }
     }
 
-    private boolean cancel(@NotNull Ticket ticket) throws TicketManagerException{
-        return cancel(ticket.getUserId(), ticket.getId(), ticket.getHoldTransId());
-    }
-
-    private String buy(@NotNull Ticket ticket) throws TicketManagerException,InterruptedException{
-        return buy(ticket.getUserId(), ticket.getId(), ticket.getHoldTransId());
+    /**
+     * Waits for a purchase to complete.
+     */
+    private static String await(@NotNull CompletableFuture<String> purchase)
+            throws TicketManagerException,InterruptedException{
+        try{
+            return purchase.get();
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof TicketManagerException){
+                throw (TicketManagerException) e.getCause();
+            }
+            throw new TicketManagerException("Purchase Failed...", e.getCause());
+        }
     }
 
-    private class BuyTask implements Callable<String>{
+    /**
+     * Calls the webservice until the purchase succeeds. A failed call is retried after a delay and a call
+     * refused by the circuit breaker waits until the circuit lets calls through again; in both cases the pool
+     * thread is released while waiting. The repeated calls of a live purchase wait in the RETRY lane.
+     */
+    private class BuyTask implements Runnable{
 
         String ticketId;
         String userId;
+        PurchaseLane lane;
+        int retries; //failed calls so far
+        CompletableFuture<String> result = new CompletableFuture<>();
 
-        public BuyTask(String ticketId, String userId){
+        public BuyTask(String ticketId, String userId, PurchaseLane lane){
             this.ticketId = ticketId;
             this.userId = userId;
+            this.lane = lane;
         }
 
-        public String call() throws InterruptedException{
-            while(true){
-                try {
-                    return webservice.buy(ticketId, userId);
+        public void run(){
+            if(!breaker.tryAcquire()){
+                breaker.park(this::resubmit);
+                return;
+            }
+            boolean reported = false; //every permitted call reports its outcome, or a half-open probe never ends
+            try {
+                long start = System.currentTimeMillis();
+                String buyId = webservice.buy(ticketId, userId, retries);
+                reported = true;
+                breaker.success();
+                metrics.buyLatency(System.currentTimeMillis() - start);
+                result.complete(buyId);
+            }
+            catch (IllegalStateException e) {
+                reported = true;
+                breaker.failure();
+                metrics.buyRetried();
+                retries++;
+                try{
+                    timer.schedule(this::resubmit, options.getBuyRetryMs(), TimeUnit.MILLISECONDS);
+                }catch(RejectedExecutionException re){
+                    result.completeExceptionally(e); //shutting down; the ticket stays BUYING
                 }
-                catch (IllegalStateException e) {
-                    Thread.sleep(5000);
+            }
+            catch (Throwable e) {
+                result.completeExceptionally(e); //interrupted or shutting down; the ticket stays BUYING
+                if(e instanceof InterruptedException){
+                    Thread.currentThread().interrupt();
+                }else if(e instanceof Error){
+                    throw (Error) e;
                 }
             }
+            finally {
+                if(!reported){
+                    breaker.failure();
+                }
+            }
+        }
+
+        private void resubmit(){
+            if(lane == PurchaseLane.LIVE){
+                lane = PurchaseLane.RETRY; //recovered purchases keep their lane
+            }
+            dispatch(this);
         }
     }
 
@@ -348,19 +1064,123 @@ public class TicketManager {
         }
 
         public void run() {
+            long now = System.currentTimeMillis();
+            List<Hold> due = new ArrayList<>();
+            Hold hold;
+            while((hold = heldTickets.peek()) != null && now - hold.holdTime > expireTimeMs){
+                heldTickets.poll(); //holds are queued in hold time order
+                due.add(hold);
+            }
+            if(due.isEmpty() && unwritten.isEmpty()){
+                return;
+            }
+            if(!due.isEmpty()){
+                metrics.expirySweep(now - due.get(0).holdTime - expireTimeMs);
+            }
             try{
-                Ticket ticket = heldTickets.peek();
-                if(ticket.getStatus() != TicketStatusCode.HELD){
-                    heldTickets.take(); //no longer held
+                expire(due); //expired, unless they are stale
+            }catch(TicketManagerException e){
+                metrics.expiryWriteFailed(); //written again by the next sweep; an exception would end the task
+            }
+        }
+    }
+
+    /**
+     * Finds the tickets a previous instance left HELD or BUYING when tickets are loaded lazily, and resumes them.
+     * Tickets changed since startup are skipped, since their state no longer comes from the previous instance.
+     * All tickets that are not AVAILABLE are added to the index by user.
+     */
+    private class ResumeTask implements Runnable{
+
+        final TicketIndex index;
+
+        ResumeTask(TicketIndex index){
+            this.index = index;
+        }
+
+        public void run(){
+            try{
+                for(int line=0; line<index.size(); line++){
+                    TicketStatusCode status = index.status(line);
+                    if(status==TicketStatusCode.AVAILABLE){
+                        continue;
+                    }
+                    global.lock();
+                    try{
+                        if(status==TicketStatusCode.BOUGHT){
+                            userTickets.add(index.read(line)); //final; no need to load it
+                            continue;
+                        }
+                        Ticket tik = tickets.get(index.read(line).getId());
+                        userTickets.add(tik);
+                        if(!lazy.changed(tik.getId())){
+                            if(tik.getStatus()==TicketStatusCode.HELD){
+                                tik.setHoldTime(System.currentTimeMillis()); //a full expiry period, as at startup
+                            }
+                            resume(tik);
+                        }
+                    }finally{
+                        global.unlock();
+                    }
                 }
-                //System.out.println(System.currentTimeMillis() + "-" + ticket.getHoldTime());
-                System.out.println(System.currentTimeMillis()-ticket.getHoldTime());
-                if((System.currentTimeMillis()-ticket.getHoldTime())>expireTimeMs){
-                    cancel(heldTickets.take()); //expired
+            }catch(TicketManagerException e){
+                throw new IllegalStateException(e);
+            }finally{
+                global.lock();
+                try{
+                    lazy.trackChanges(false);
+                }finally{
+                    global.unlock();
                 }
-            }catch(TicketManagerException|InterruptedException e){
-                throw new IllegalStateException();
             }
         }
     }
+
+    /**
+     * A hold waiting to expire. The entry is stale once the ticket is no longer held under this hold.
+     */
+    private static class Hold{
+
+        final String ticketId;
+        final String holdTransId;
+        final long holdTime;
+
+        Hold(String ticketId, String holdTransId){
+            this.ticketId = ticketId;
+            this.holdTransId = holdTransId;
+            this.holdTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A hold cancelled by an expiry sweep, with the waiting user who received it, if any.
+     */
+    private static class Expiry{
+
+        final Ticket ticket;
+        final Waiter next;
+        final String nextTxId;
+        final HoldExpiredEvent event;
+
+        Expiry(Ticket ticket, Waiter next, String nextTxId, HoldExpiredEvent event){
+            this.ticket = ticket;
+            this.next = next;
+            this.nextTxId = nextTxId;
+            this.event = event;
+        }
+    }
+
+    /**
+     * A user waiting in holdWhenAvailable(). The future completes with the hold transaction id once the hold is
+     * handed over to the user.
+     */
+    private static class Waiter{
+
+        final String userId;
+        final CompletableFuture<String> hold = new CompletableFuture<>();
+
+        Waiter(String userId){
+            this.userId = userId;
+        }
+    }
 }
@@ -6,12 +6,25 @@ import javax.validation.constraints.NotNull;
  * This is the main exception thrown by the TicketManager library.
  */
 public class TicketManagerException extends Exception {
+    // Suggested delay before retrying the request, or 0 if retrying is not expected to help.
+    private final long retryAfterMs;
+
     /**
      * Constructs an exception with just message.
      * @param message An exception messsage.
      */
     public TicketManagerException(@NotNull String message) {
+        this(message, 0);
+    }
+
+    /**
+     * Constructs an exception for a request that was rejected because the ticket manager is overloaded.
+     * @param message An exception message.
+     * @param retryAfterMs Suggested delay in milliseconds before retrying the request.
+     */
+    public TicketManagerException(@NotNull String message, long retryAfterMs) {
         super(message);
+        this.retryAfterMs = retryAfterMs;
     }
 
     /**
@@ -20,6 +33,7 @@ public class TicketManagerException extends Exception {
      */
     public TicketManagerException(@NotNull Throwable cause) {
         super(cause);
+        this.retryAfterMs = 0;
     }
 
     /**
@@ -29,5 +43,15 @@ public class TicketManagerException extends Exception {
      */
     public TicketManagerException(@NotNull String message, @NotNull Throwable cause) {
         super(message, cause);
+        this.retryAfterMs = 0;
+    }
+
+    /**
+     * Returns the suggested delay before retrying the request. A positive value means the request was shed
+     * because of load and is likely to succeed if retried after the delay.
+     * @return The delay in milliseconds, or 0 if no retry is suggested.
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
     }
 }
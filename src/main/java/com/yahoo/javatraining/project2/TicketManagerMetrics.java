@@ -0,0 +1,476 @@
+package com.yahoo.javatraining.project2;
+
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.Storage;
+
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live counters describing the activity of a TicketManager. The values are updated by the ticket manager as
+ * requests are processed; each getter returns the current value. This class is thread-safe.
+ */
+public class TicketManagerMetrics {
+    // Weight of the newest sample in the moving average of webservice latency.
+    private static final double LATENCY_ALPHA = 0.2;
+
+    private final AtomicLong buysAdmitted = new AtomicLong();
+
+    private final AtomicLong buysRejectedOverload = new AtomicLong();
+
+    private final AtomicLong buysRejectedDeadline = new AtomicLong();
+
+    private final AtomicLong buysRejectedUserLimit = new AtomicLong();
+
+    private final AtomicInteger buysInProgress = new AtomicInteger();
+
+    private final AtomicLong holdsRejectedUserLimit = new AtomicLong();
+
+    private final AtomicIntegerArray laneQueued = new AtomicIntegerArray(PurchaseLane.values().length);
+
+    private final AtomicLongArray laneDispatched = new AtomicLongArray(PurchaseLane.values().length);
+
+    private final AtomicLongArray laneOverdue = new AtomicLongArray(PurchaseLane.values().length);
+
+    private final AtomicLong holdHandovers = new AtomicLong();
+
+    private final AtomicLong holdsExpired = new AtomicLong();
+
+    private final AtomicLong expirySweeps = new AtomicLong();
+
+    private final AtomicLong expiryWriteFailures = new AtomicLong();
+
+    private volatile long expiryLagMs;
+
+    private final AtomicLong maxExpiryLagMs = new AtomicLong();
+
+    private final AtomicLong buyRetries = new AtomicLong();
+
+    private final AtomicLong hedgesFired = new AtomicLong();
+
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    private final AtomicLong hedgeSavedMs = new AtomicLong();
+
+    private final AtomicLong circuitOpened = new AtomicLong();
+
+    private final AtomicLong storageBatches = new AtomicLong();
+
+    private final AtomicLong storageUpdatesMerged = new AtomicLong();
+
+    private final AtomicLong storageFlushFailures = new AtomicLong();
+
+    private volatile CircuitState circuitState = CircuitState.CLOSED;
+
+    private volatile Storage storage;
+
+    private volatile LazyTicketStore lazyStore;
+
+    private volatile StorageWriter storageWriter;
+
+    // Exponentially weighted moving average of the webservice latency, stored as the bits of a double.
+    private final AtomicLong buyLatencyAvg = new AtomicLong(Double.doubleToLongBits(0));
+
+    /**
+     * Returns the number of purchases admitted into the purchase pipeline.
+     *
+     * @return A purchase count.
+     */
+    public long getBuysAdmitted() {
+        return buysAdmitted.get();
+    }
+
+    /**
+     * Returns the number of purchases rejected because the purchase pipeline was full.
+     *
+     * @return A purchase count.
+     */
+    public long getBuysRejectedOverload() {
+        return buysRejectedOverload.get();
+    }
+
+    /**
+     * Returns the number of purchases rejected because they could not leave the queue before the hold expired.
+     *
+     * @return A purchase count.
+     */
+    public long getBuysRejectedDeadline() {
+        return buysRejectedDeadline.get();
+    }
+
+    /**
+     * Returns the number of purchases rejected because the user had too many purchases in progress.
+     *
+     * @return A purchase count.
+     */
+    public long getBuysRejectedUserLimit() {
+        return buysRejectedUserLimit.get();
+    }
+
+    /**
+     * Returns the number of holds rejected because the user already held the maximum number of tickets.
+     *
+     * @return A hold count.
+     */
+    public long getHoldsRejectedUserLimit() {
+        return holdsRejectedUserLimit.get();
+    }
+
+    /**
+     * Returns the number of live purchases currently queued or calling the webservice. Purchases recovered at
+     * startup are not counted.
+     *
+     * @return A purchase count.
+     */
+    public int getBuysInProgress() {
+        return buysInProgress.get();
+    }
+
+    /**
+     * Returns the moving average of the webservice latency. Zero is returned until the first purchase completes.
+     *
+     * @return The average latency in milliseconds.
+     */
+    public double getBuyLatencyAvgMs() {
+        return Double.longBitsToDouble(buyLatencyAvg.get());
+    }
+
+    /**
+     * Returns the number of purchase calls currently waiting in a lane for a buy thread.
+     *
+     * @param lane A purchase lane.
+     * @return A call count.
+     */
+    public int getLaneQueued(@NotNull PurchaseLane lane) {
+        return laneQueued.get(lane.ordinal());
+    }
+
+    /**
+     * Returns the number of purchase calls of a lane handed to a buy thread.
+     *
+     * @param lane A purchase lane.
+     * @return A call count.
+     */
+    public long getLaneDispatched(@NotNull PurchaseLane lane) {
+        return laneDispatched.get(lane.ordinal());
+    }
+
+    /**
+     * Returns the number of purchase calls of a lane served ahead of the lane weights because they had waited
+     * longer than the maximum lane wait.
+     *
+     * @param lane A purchase lane.
+     * @return A call count.
+     */
+    public long getLaneOverdue(@NotNull PurchaseLane lane) {
+        return laneOverdue.get(lane.ordinal());
+    }
+
+    /**
+     * Returns the number of holds that were passed directly to a waiting user when the previous hold ended.
+     *
+     * @return A hold count.
+     */
+    public long getHoldHandovers() {
+        return holdHandovers.get();
+    }
+
+    /**
+     * Returns the number of holds cancelled because they expired.
+     *
+     * @return A hold count.
+     */
+    public long getHoldsExpired() {
+        return holdsExpired.get();
+    }
+
+    /**
+     * Returns the number of sweeps that found expired holds.
+     *
+     * @return A sweep count.
+     */
+    public long getExpirySweeps() {
+        return expirySweeps.get();
+    }
+
+    /**
+     * Returns the number of expiry sweeps whose write failed. The tickets they released are written again by the
+     * next sweep.
+     *
+     * @return A sweep count.
+     */
+    public long getExpiryWriteFailures() {
+        return expiryWriteFailures.get();
+    }
+
+    /**
+     * Returns how late the last expiry sweep was, i.e. how long after its expiry time the oldest hold it cancelled
+     * was found.
+     *
+     * @return A lag in milliseconds.
+     */
+    public long getExpiryLagMs() {
+        return expiryLagMs;
+    }
+
+    /**
+     * Returns the largest expiry lag of any sweep.
+     *
+     * @return A lag in milliseconds.
+     */
+    public long getMaxExpiryLagMs() {
+        return maxExpiryLagMs.get();
+    }
+
+    /**
+     * Returns the number of failed purchase calls that were scheduled to be retried.
+     *
+     * @return A call count.
+     */
+    public long getBuyRetries() {
+        return buyRetries.get();
+    }
+
+    /**
+     * Returns the current state of the circuit breaker guarding the purchase webservice.
+     *
+     * @return A circuit state.
+     */
+    public CircuitState getCircuitState() {
+        return circuitState;
+    }
+
+    /**
+     * Returns the number of times the circuit breaker has opened.
+     *
+     * @return An open count.
+     */
+    public long getCircuitOpened() {
+        return circuitOpened.get();
+    }
+
+    /**
+     * Returns the number of tickets the lazy ticket store currently holds in memory. The value is approximate,
+     * since it is read without locking.
+     *
+     * @return A ticket count, or 0 if lazy loading is off.
+     */
+    public int getTicketsLoaded() {
+        LazyTicketStore store = lazyStore;
+        return store == null ? 0 : store.loadedCount();
+    }
+
+    /**
+     * Returns the durability mode of the storage updates.
+     *
+     * @return A durability mode, or null if no storage is attached.
+     */
+    public Durability getStorageDurability() {
+        Storage storage = this.storage;
+        return storage == null ? null : storage.getDurability();
+    }
+
+    /**
+     * Returns the number of times the storage file has been rewritten.
+     *
+     * @return A write count.
+     */
+    public long getStorageWrites() {
+        Storage storage = this.storage;
+        return storage == null ? 0 : storage.getWriteCount();
+    }
+
+    /**
+     * Returns the number of times the storage file has been forced to disk.
+     *
+     * @return A sync count.
+     */
+    public long getStorageSyncs() {
+        Storage storage = this.storage;
+        return storage == null ? 0 : storage.getSyncCount();
+    }
+
+    /**
+     * Returns the number of batches of updates the storage writer has written.
+     *
+     * @return A batch count.
+     */
+    public long getStorageBatches() {
+        return storageBatches.get();
+    }
+
+    /**
+     * Returns the number of updates that were not written separately because a later update of the same ticket
+     * was written in the same batch.
+     *
+     * @return An update count.
+     */
+    public long getStorageUpdatesMerged() {
+        return storageUpdatesMerged.get();
+    }
+
+    /**
+     * Returns the number of flushes of the grouped storage updates, made when the group window has passed, that
+     * failed. The updates of a failed flush are written again by the next one.
+     *
+     * @return A flush count.
+     */
+    public long getStorageFlushFailures() {
+        return storageFlushFailures.get();
+    }
+
+    /**
+     * Returns the number of updates waiting for the storage writer.
+     *
+     * @return An update count.
+     */
+    public int getStorageQueued() {
+        StorageWriter writer = storageWriter;
+        return writer == null ? 0 : writer.queued();
+    }
+
+    /**
+     * Returns the number of duplicate purchase calls sent because the first call was slow.
+     *
+     * @return A call count.
+     */
+    public long getHedgesFired() {
+        return hedgesFired.get();
+    }
+
+    /**
+     * Returns the number of hedged purchases in which the duplicate call answered first.
+     *
+     * @return A purchase count.
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Returns the total time saved by hedging, i.e. the sum over the hedges that answered first of how much later
+     * the original call answered.
+     *
+     * @return The saved time in milliseconds.
+     */
+    public long getHedgeSavedMs() {
+        return hedgeSavedMs.get();
+    }
+
+    void lazyStore(LazyTicketStore lazyStore) {
+        this.lazyStore = lazyStore;
+    }
+
+    void storage(Storage storage) {
+        this.storage = storage;
+    }
+
+    void storageWriter(StorageWriter storageWriter) {
+        this.storageWriter = storageWriter;
+    }
+
+    void storageBatch(int updates, int tickets) {
+        storageBatches.incrementAndGet();
+        storageUpdatesMerged.addAndGet(updates - tickets);
+    }
+
+    void storageFlushFailed() {
+        storageFlushFailures.incrementAndGet();
+    }
+
+    void buyAdmitted() {
+        buysAdmitted.incrementAndGet();
+    }
+
+    void buyRejectedOverload() {
+        buysRejectedOverload.incrementAndGet();
+    }
+
+    void buyRejectedDeadline() {
+        buysRejectedDeadline.incrementAndGet();
+    }
+
+    void buyRejectedUserLimit() {
+        buysRejectedUserLimit.incrementAndGet();
+    }
+
+    void holdRejectedUserLimit() {
+        holdsRejectedUserLimit.incrementAndGet();
+    }
+
+    void buyStarted() {
+        buysInProgress.incrementAndGet();
+    }
+
+    void buyFinished() {
+        buysInProgress.decrementAndGet();
+    }
+
+    void laneQueued(PurchaseLane lane) {
+        laneQueued.incrementAndGet(lane.ordinal());
+    }
+
+    void laneDispatched(PurchaseLane lane, boolean overdue) {
+        laneQueued.decrementAndGet(lane.ordinal());
+        laneDispatched.incrementAndGet(lane.ordinal());
+        if (overdue) {
+            laneOverdue.incrementAndGet(lane.ordinal());
+        }
+    }
+
+    void holdHandedOver() {
+        holdHandovers.incrementAndGet();
+    }
+
+    void holdsExpired(int holds) {
+        holdsExpired.addAndGet(holds);
+    }
+
+    void expirySweep(long lagMs) {
+        expirySweeps.incrementAndGet();
+        expiryLagMs = lagMs;
+        maxExpiryLagMs.accumulateAndGet(lagMs, Math::max);
+    }
+
+    void expiryWriteFailed() {
+        expiryWriteFailures.incrementAndGet();
+    }
+
+    void buyRetried() {
+        buyRetries.incrementAndGet();
+    }
+
+    void circuitState(CircuitState state) {
+        circuitState = state;
+    }
+
+    void circuitOpened() {
+        circuitOpened.incrementAndGet();
+    }
+
+    void hedgeFired() {
+        hedgesFired.incrementAndGet();
+    }
+
+    void hedgeWon() {
+        hedgesWon.incrementAndGet();
+    }
+
+    void hedgeSaved(long savedMs) {
+        hedgeSavedMs.addAndGet(savedMs);
+    }
+
+    void buyLatency(long latencyMs) {
+        while (true) {
+            long bits = buyLatencyAvg.get();
+            double avg = Double.longBitsToDouble(bits);
+            double next = avg == 0 ? latencyMs : avg + LATENCY_ALPHA * (latencyMs - avg);
+            if (buyLatencyAvg.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package com.yahoo.javatraining.project2;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Tuning parameters for a TicketManager. A freshly constructed instance holds the defaults used by the
+ * three-argument TicketManager constructor. The options are read once, when the ticket manager is constructed;
+ * changing them afterwards has no effect on an existing ticket manager.
+ */
+public class TicketManagerOptions {
+    private boolean offHeapStore = false;
+
+    private boolean lazyLoad = false;
+
+    private int buyThreads = 5;
+
+    private int maxQueuedBuys = 1000;
+
+    private int storageQueueSize = 1024;
+
+    private final int[] laneWeights = {8, 2, 1}; //by PurchaseLane
+
+    private long maxLaneWaitMs = 1000;
+
+    private int maxBuysPerUser = 5;
+
+    private int maxHoldsPerUser = Integer.MAX_VALUE;
+
+    private TransactionIdGenerator transactionIdGenerator = new RandomTransactionIds();
+
+    private int webserviceConcurrency = 5;
+
+    private double hedgePercentile = 0;
+
+    private double maxHedgeRatio = 0.1;
+
+    private long buyRetryMs = 5000;
+
+    private int breakerWindow = 20;
+
+    private int breakerMinCalls = 10;
+
+    private double breakerFailureRatio = 0.5;
+
+    private long breakerOpenMs = 5000;
+
+    /**
+     * Returns whether the ticket state is kept outside the Java heap.
+     *
+     * @return true if the off-heap ticket store is used.
+     */
+    public boolean isOffHeapStore() {
+        return offHeapStore;
+    }
+
+    /**
+     * Chooses where the ticket state is kept. By default every ticket is a Ticket object on the Java heap.
+     * With the off-heap store the state of all tickets is kept in direct memory, which removes it from garbage
+     * collection; Ticket objects are then only created for the results of TicketManager.tickets().
+     * Ticket and user ids are limited to 32 UTF-8 bytes in the off-heap store.
+     *
+     * @param offHeapStore true to use the off-heap ticket store.
+     */
+    public void setOffHeapStore(boolean offHeapStore) {
+        this.offHeapStore = offHeapStore;
+    }
+
+    /**
+     * Returns whether tickets are read from the ticket file on first access.
+     *
+     * @return true if lazy loading is used.
+     */
+    public boolean isLazyLoad() {
+        return lazyLoad;
+    }
+
+    /**
+     * Chooses whether all tickets are loaded when the ticket manager is constructed. With lazy loading only an
+     * index of the ticket file is opened, which is kept next to the file and rebuilt if missing; tickets are read
+     * from the file on first access and dropped from memory again once they are AVAILABLE. Startup time and heap
+     * use then no longer grow with the number of tickets. Tickets left HELD or BUYING are found by a background
+     * scan of the index. Lazy loading cannot be combined with the off-heap store.
+     *
+     * @param lazyLoad true to load tickets lazily.
+     */
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    /**
+     * Returns the number of threads calling the webservice to complete purchases.
+     *
+     * @return A positive thread count.
+     */
+    public int getBuyThreads() {
+        return buyThreads;
+    }
+
+    /**
+     * Sets the number of threads calling the webservice to complete purchases.
+     * This should not exceed the concurrency limit of the webservice.
+     *
+     * @param buyThreads A positive thread count.
+     */
+    public void setBuyThreads(int buyThreads) {
+        if (buyThreads <= 0) {
+            throw new IllegalArgumentException("buyThreads must be positive: " + buyThreads);
+        }
+        this.buyThreads = buyThreads;
+    }
+
+    /**
+     * Returns the maximum number of purchases that may wait for a buy thread. Purchases beyond this limit are
+     * rejected immediately instead of being queued.
+     *
+     * @return A non-negative queue capacity.
+     */
+    public int getMaxQueuedBuys() {
+        return maxQueuedBuys;
+    }
+
+    /**
+     * Sets the maximum number of purchases that may wait for a buy thread.
+     *
+     * @param maxQueuedBuys A non-negative queue capacity.
+     */
+    public void setMaxQueuedBuys(int maxQueuedBuys) {
+        if (maxQueuedBuys < 0) {
+            throw new IllegalArgumentException("maxQueuedBuys must not be negative: " + maxQueuedBuys);
+        }
+        this.maxQueuedBuys = maxQueuedBuys;
+    }
+
+    /**
+     * Returns the number of storage updates that may wait for the storage writer. Threads that update a ticket
+     * while the queue is full wait for the writer to catch up.
+     *
+     * @return A positive queue capacity.
+     */
+    public int getStorageQueueSize() {
+        return storageQueueSize;
+    }
+
+    /**
+     * Sets the number of storage updates that may wait for the storage writer. The capacity is rounded up to a
+     * power of two.
+     *
+     * @param storageQueueSize A positive queue capacity of at most 2^30.
+     */
+    public void setStorageQueueSize(int storageQueueSize) {
+        if (storageQueueSize <= 0 || storageQueueSize > 1 << 30) {
+            throw new IllegalArgumentException("storageQueueSize must be in [1, 2^30]: " + storageQueueSize);
+        }
+        this.storageQueueSize = storageQueueSize;
+    }
+
+    /**
+     * Returns the share of the buy threads given to a lane of waiting purchase calls while other lanes are busy.
+     *
+     * @param lane A purchase lane.
+     * @return A positive weight.
+     */
+    public int getLaneWeight(@NotNull PurchaseLane lane) {
+        return laneWeights[lane.ordinal()];
+    }
+
+    /**
+     * Sets the share of the buy threads given to a lane of waiting purchase calls. Busy lanes are served in
+     * proportion to their weights. The defaults are 8 for LIVE, 2 for RETRY and 1 for RECOVERY, so a backlog of
+     * recovered purchases after a restart takes one call in eleven while users are buying.
+     *
+     * @param lane   A purchase lane.
+     * @param weight A positive weight.
+     */
+    public void setLaneWeight(@NotNull PurchaseLane lane, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Lane weight must be positive: " + weight);
+        }
+        laneWeights[lane.ordinal()] = weight;
+    }
+
+    /**
+     * Returns the time after which a waiting purchase call is served ahead of the lane weights.
+     *
+     * @return A duration in milliseconds.
+     */
+    public long getMaxLaneWaitMs() {
+        return maxLaneWaitMs;
+    }
+
+    /**
+     * Sets the time after which a waiting purchase call is served ahead of the lane weights, oldest first. This
+     * keeps a busy lane from starving the others.
+     *
+     * @param maxLaneWaitMs A non-negative duration in milliseconds.
+     */
+    public void setMaxLaneWaitMs(long maxLaneWaitMs) {
+        if (maxLaneWaitMs < 0) {
+            throw new IllegalArgumentException("maxLaneWaitMs must not be negative: " + maxLaneWaitMs);
+        }
+        this.maxLaneWaitMs = maxLaneWaitMs;
+    }
+
+    /**
+     * Returns the maximum number of purchases a single user may have in progress at the same time.
+     *
+     * @return A positive purchase count.
+     */
+    public int getMaxBuysPerUser() {
+        return maxBuysPerUser;
+    }
+
+    /**
+     * Sets the maximum number of purchases a single user may have in progress at the same time.
+     *
+     * @param maxBuysPerUser A positive purchase count.
+     */
+    public void setMaxBuysPerUser(int maxBuysPerUser) {
+        if (maxBuysPerUser <= 0) {
+            throw new IllegalArgumentException("maxBuysPerUser must be positive: " + maxBuysPerUser);
+        }
+        this.maxBuysPerUser = maxBuysPerUser;
+    }
+
+    /**
+     * Returns the maximum number of tickets a single user may hold at the same time.
+     *
+     * @return A positive ticket count.
+     */
+    public int getMaxHoldsPerUser() {
+        return maxHoldsPerUser;
+    }
+
+    /**
+     * Sets the maximum number of tickets a single user may hold at the same time. Further holds by the user are
+     * rejected until one of the holds is cancelled, expires or is bought. Tickets the user is waiting for in
+     * holdWhenAvailable() count as held, since the hold is handed over without another check. There is no limit
+     * by default.
+     *
+     * @param maxHoldsPerUser A positive ticket count.
+     */
+    public void setMaxHoldsPerUser(int maxHoldsPerUser) {
+        if (maxHoldsPerUser <= 0) {
+            throw new IllegalArgumentException("maxHoldsPerUser must be positive: " + maxHoldsPerUser);
+        }
+        this.maxHoldsPerUser = maxHoldsPerUser;
+    }
+
+    /**
+     * Returns the generator of hold transaction ids.
+     *
+     * @return A transaction id generator.
+     */
+    public @NotNull TransactionIdGenerator getTransactionIdGenerator() {
+        return transactionIdGenerator;
+    }
+
+    /**
+     * Sets the generator of hold transaction ids. By default ids are random UUIDs drawn from a random generator
+     * per thread.
+     *
+     * @param transactionIdGenerator A transaction id generator.
+     */
+    public void setTransactionIdGenerator(@NotNull TransactionIdGenerator transactionIdGenerator) {
+        if (transactionIdGenerator == null) {
+            throw new IllegalArgumentException("transactionIdGenerator must not be null");
+        }
+        this.transactionIdGenerator = transactionIdGenerator;
+    }
+
+    /**
+     * Returns the maximum number of concurrent calls that may be made to the webservice, including hedged calls.
+     *
+     * @return A positive call count.
+     */
+    public int getWebserviceConcurrency() {
+        return webserviceConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of concurrent calls that may be made to the webservice, including hedged calls.
+     *
+     * @param webserviceConcurrency A positive call count.
+     */
+    public void setWebserviceConcurrency(int webserviceConcurrency) {
+        if (webserviceConcurrency <= 0) {
+            throw new IllegalArgumentException("webserviceConcurrency must be positive: " + webserviceConcurrency);
+        }
+        this.webserviceConcurrency = webserviceConcurrency;
+    }
+
+    /**
+     * Returns the percentile of the observed webservice latency after which a duplicate purchase call is sent.
+     * Zero means that hedging is disabled, which is the default.
+     *
+     * @return A fraction between 0 and 1.
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Enables hedged purchase calls. A purchase call that has not returned after the given percentile of the
+     * observed latency is duplicated, and the first answer is used.
+     *
+     * @param hedgePercentile A fraction between 0 and 1, e.g. 0.95. Zero disables hedging.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile >= 1) {
+            throw new IllegalArgumentException("hedgePercentile must be in [0, 1): " + hedgePercentile);
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Returns the maximum number of hedged calls as a fraction of all purchase calls.
+     *
+     * @return A fraction between 0 and 1.
+     */
+    public double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+
+    /**
+     * Sets the maximum number of hedged calls as a fraction of all purchase calls.
+     *
+     * @param maxHedgeRatio A fraction between 0 and 1.
+     */
+    public void setMaxHedgeRatio(double maxHedgeRatio) {
+        if (maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("maxHedgeRatio must be in [0, 1]: " + maxHedgeRatio);
+        }
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    /**
+     * Returns the delay before a failed purchase call is retried.
+     *
+     * @return A duration in milliseconds.
+     */
+    public long getBuyRetryMs() {
+        return buyRetryMs;
+    }
+
+    /**
+     * Sets the delay before a failed purchase call is retried.
+     *
+     * @param buyRetryMs A positive duration in milliseconds.
+     */
+    public void setBuyRetryMs(long buyRetryMs) {
+        if (buyRetryMs <= 0) {
+            throw new IllegalArgumentException("buyRetryMs must be positive: " + buyRetryMs);
+        }
+        this.buyRetryMs = buyRetryMs;
+    }
+
+    /**
+     * Returns the number of recent purchase calls whose outcome is used to decide whether to open the circuit.
+     *
+     * @return A positive call count.
+     */
+    public int getBreakerWindow() {
+        return breakerWindow;
+    }
+
+    /**
+     * Sets the number of recent purchase calls whose outcome is used to decide whether to open the circuit.
+     *
+     * @param breakerWindow A positive call count.
+     */
+    public void setBreakerWindow(int breakerWindow) {
+        if (breakerWindow <= 0) {
+            throw new IllegalArgumentException("breakerWindow must be positive: " + breakerWindow);
+        }
+        this.breakerWindow = breakerWindow;
+    }
+
+    /**
+     * Returns the minimum number of calls in the window before the circuit may open.
+     *
+     * @return A positive call count.
+     */
+    public int getBreakerMinCalls() {
+        return breakerMinCalls;
+    }
+
+    /**
+     * Sets the minimum number of calls in the window before the circuit may open.
+     *
+     * @param breakerMinCalls A positive call count.
+     */
+    public void setBreakerMinCalls(int breakerMinCalls) {
+        if (breakerMinCalls <= 0) {
+            throw new IllegalArgumentException("breakerMinCalls must be positive: " + breakerMinCalls);
+        }
+        this.breakerMinCalls = breakerMinCalls;
+    }
+
+    /**
+     * Returns the fraction of failed calls in the window at which the circuit opens.
+     *
+     * @return A fraction between 0 and 1.
+     */
+    public double getBreakerFailureRatio() {
+        return breakerFailureRatio;
+    }
+
+    /**
+     * Sets the fraction of failed calls in the window at which the circuit opens.
+     *
+     * @param breakerFailureRatio A fraction greater than 0 and at most 1.
+     */
+    public void setBreakerFailureRatio(double breakerFailureRatio) {
+        if (breakerFailureRatio <= 0 || breakerFailureRatio > 1) {
+            throw new IllegalArgumentException("breakerFailureRatio must be in (0, 1]: " + breakerFailureRatio);
+        }
+        this.breakerFailureRatio = breakerFailureRatio;
+    }
+
+    /**
+     * Returns how long the circuit stays open before a probe call is allowed.
+     *
+     * @return A duration in milliseconds.
+     */
+    public long getBreakerOpenMs() {
+        return breakerOpenMs;
+    }
+
+    /**
+     * Sets how long the circuit stays open before a probe call is allowed.
+     *
+     * @param breakerOpenMs A positive duration in milliseconds.
+     */
+    public void setBreakerOpenMs(long breakerOpenMs) {
+        if (breakerOpenMs <= 0) {
+            throw new IllegalArgumentException("breakerOpenMs must be positive: " + breakerOpenMs);
+        }
+        this.breakerOpenMs = breakerOpenMs;
+    }
+}
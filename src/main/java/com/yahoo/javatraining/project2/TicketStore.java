@@ -0,0 +1,51 @@
+package com.yahoo.javatraining.project2;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import java.util.List;
+
+/**
+ * Holds the in-memory state of the tickets managed by a TicketManager.
+ * Implementations are not thread-safe; the ticket manager only calls them while holding its global lock.
+ */
+interface TicketStore {
+    /**
+     * Returns the number of tickets in the store.
+     *
+     * @return A ticket count.
+     */
+    int size();
+
+    /**
+     * Returns the ticket with the given id. Depending on the implementation, the instance is either the stored
+     * ticket itself or a copy of its state; changes to it must therefore be written back with put().
+     *
+     * @param ticketId A ticket id.
+     * @return The ticket, or null if there is no ticket with this id.
+     */
+    @Nullable
+    Ticket get(@NotNull String ticketId);
+
+    /**
+     * Stores the state of the ticket, adding the ticket if its id is not in the store yet.
+     *
+     * @param ticket A ticket instance.
+     */
+    void put(@NotNull Ticket ticket);
+
+    /**
+     * Returns all the tickets in the store.
+     *
+     * @return List of Ticket objects.
+     */
+    @NotNull
+    List<Ticket> tickets();
+
+    /**
+     * Returns the id of an AVAILABLE ticket, searching round-robin from where the last search ended.
+     *
+     * @return A ticket id, or null if no ticket is AVAILABLE.
+     */
+    @Nullable
+    String nextAvailable();
+}
@@ -0,0 +1,21 @@
+package com.yahoo.javatraining.project2;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Creates the hold transaction ids handed out by a TicketManager. Implementations must be thread-safe, since holds
+ * are granted by many threads at once, and should be cheap, since an id is created with the global lock held.
+ * <p>
+ * An id must be unique among the ids of all tickets, including those of previous instances that are still stored,
+ * and must not contain whitespace, since it is stored in the ticket file. Ids in the canonical UUID format are kept
+ * as two longs in memory; other ids are kept as strings.
+ */
+public interface TransactionIdGenerator {
+    /**
+     * Returns a new transaction id.
+     *
+     * @return A transaction id.
+     */
+    @NotNull
+    String next();
+}
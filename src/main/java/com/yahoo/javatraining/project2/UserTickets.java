@@ -0,0 +1,116 @@
+package com.yahoo.javatraining.project2;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A secondary index from user ids to the tickets each user holds, is buying or has bought. The ticket manager
+ * maintains it on every transition that changes the user or the HELD state of a ticket, so the tickets and the
+ * hold count of a user are found without scanning all tickets. It also counts the held tickets each user is
+ * waiting for, since each wait may turn into a hold. Users without tickets or waits take no space.
+ * All operations except the wait counting are idempotent. This class is not thread-safe.
+ */
+class UserTickets {
+    private final HashMap<String, Owned> users = new HashMap<>();
+
+    /**
+     * Records that the user holds the ticket.
+     */
+    void held(@NotNull String userId, @NotNull String ticketId) {
+        users.computeIfAbsent(userId, k -> new Owned()).held.add(ticketId);
+    }
+
+    /**
+     * Records that the user is buying or has bought the ticket.
+     */
+    void owned(@NotNull String userId, @NotNull String ticketId) {
+        Owned owned = users.computeIfAbsent(userId, k -> new Owned());
+        owned.held.remove(ticketId);
+        owned.bought.add(ticketId);
+    }
+
+    /**
+     * Records that the user no longer holds the ticket.
+     */
+    void released(@NotNull String userId, @NotNull String ticketId) {
+        Owned owned = users.get(userId);
+        if (owned != null && owned.held.remove(ticketId) && owned.isEmpty()) {
+            users.remove(userId);
+        }
+    }
+
+    /**
+     * Records that the user is waiting for a held ticket.
+     */
+    void waiting(@NotNull String userId) {
+        users.computeIfAbsent(userId, k -> new Owned()).waits++;
+    }
+
+    /**
+     * Records that the user stopped waiting for a ticket, either because the hold was handed over or because the
+     * wait ended without it.
+     */
+    void stoppedWaiting(@NotNull String userId) {
+        Owned owned = users.get(userId);
+        if (owned != null && owned.waits > 0 && --owned.waits == 0 && owned.isEmpty()) {
+            users.remove(userId);
+        }
+    }
+
+    /**
+     * Records the state of a ticket found in the ticket file.
+     */
+    void add(@NotNull Ticket ticket) {
+        if (ticket.getUserId() == null) {
+            return;
+        }
+        if (ticket.getStatus() == TicketStatusCode.HELD) {
+            held(ticket.getUserId(), ticket.getId());
+        } else if (ticket.getStatus() != TicketStatusCode.AVAILABLE) {
+            owned(ticket.getUserId(), ticket.getId());
+        }
+    }
+
+    /**
+     * Returns the number of tickets the user holds.
+     */
+    int holds(@NotNull String userId) {
+        Owned owned = users.get(userId);
+        return owned == null ? 0 : owned.held.size();
+    }
+
+    /**
+     * Returns the number of held tickets the user is waiting for.
+     */
+    int waits(@NotNull String userId) {
+        Owned owned = users.get(userId);
+        return owned == null ? 0 : owned.waits;
+    }
+
+    /**
+     * Returns the ids of the tickets the user holds, followed by those the user is buying or has bought.
+     */
+    @NotNull
+    List<String> ticketIds(@NotNull String userId) {
+        Owned owned = users.get(userId);
+        List<String> ids = new ArrayList<>();
+        if (owned != null) {
+            ids.addAll(owned.held);
+            ids.addAll(owned.bought);
+        }
+        return ids;
+    }
+
+    private static class Owned {
+        final LinkedHashSet<String> held = new LinkedHashSet<>();
+        final LinkedHashSet<String> bought = new LinkedHashSet<>(); //BUYING or BOUGHT
+        int waits;
+
+        boolean isEmpty() {
+            return held.isEmpty() && bought.isEmpty() && waits == 0;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.yahoo.javatraining.project2;
+
+import com.yahoo.javatraining.project2.jfr.PurchaseAttemptEvent;
+import com.yahoo.javatraining.project2.util.WebService;
+
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes the purchase calls to the webservice on behalf of the ticket manager.
+ * The number of concurrent calls never exceeds the concurrency limit of the webservice.
+ * <p>
+ * If hedging is enabled, a call that has not returned after the configured percentile of the observed latency
+ * is duplicated and the first successful answer is used. This is safe because the webservice purchase is
+ * idempotent. Hedges are only sent while the webservice has spare capacity and are capped to a fraction of
+ * all calls. This class is thread-safe.
+ * <p>
+ * With hedging enabled, the calls themselves run on an internal pool while the calling thread waits for the
+ * first answer, so a purchase occupies its buy thread plus one pool thread, or two while hedged. The internal pool
+ * grows as needed; the number of concurrent webservice calls is still bounded by the concurrency limit, and the buy
+ * threads bound the number of purchases waiting.
+ */
+class WebServiceCaller {
+    private final WebService webservice;
+    private final TicketManagerMetrics metrics;
+    private final Semaphore permits; //webservice concurrency limit
+    private final LatencyWindow latencies = new LatencyWindow(1024);
+    private final double hedgePercentile;
+    private final double maxHedgeRatio;
+    private final ExecutorService attempts; //for hedged attempts
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    WebServiceCaller(@NotNull WebService webservice, @NotNull TicketManagerOptions options,
+                     @NotNull TicketManagerMetrics metrics) {
+        this.webservice = webservice;
+        this.metrics = metrics;
+        this.permits = new Semaphore(options.getWebserviceConcurrency());
+        this.hedgePercentile = options.getHedgePercentile();
+        this.maxHedgeRatio = options.getMaxHedgeRatio();
+        this.attempts = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Purchases a ticket through the webservice. Has the same contract as WebService.buy().
+     * Without hedging the call runs on the calling thread; with hedging the calling thread waits for the calls
+     * it starts on the internal pool.
+     *
+     * @param ticketId A ticket id.
+     * @param userId   A user id.
+     * @param retry    The number of failed calls for this purchase so far.
+     * @return A buy transaction id.
+     * @throws IllegalStateException If the purchase failed.
+     * @throws InterruptedException  If the thread was interrupted while waiting for the webservice.
+     */
+    @NotNull
+    String buy(@NotNull String ticketId, @NotNull String userId, int retry) throws InterruptedException {
+        calls.incrementAndGet();
+        long delay = hedgePercentile > 0 ? latencies.percentile(hedgePercentile) : -1;
+        if (delay < 0) {
+            permits.acquire();
+            return attempt(ticketId, userId, retry, false);
+        }
+
+        CompletableFuture<String> primary = attemptAsync(ticketId, userId, retry, false);
+        try {
+            return primary.get(delay, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // fall through and consider a hedge
+        } catch (ExecutionException e) {
+            throw failure(e);
+        }
+        if (!reserveHedge()) {
+            return await(primary);
+        }
+
+        metrics.hedgeFired();
+        CompletableFuture<String> hedge = attemptAsync(ticketId, userId, retry, true);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        AtomicBoolean answered = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+        primary.whenComplete((buyId, e) -> {
+            if (e == null) {
+                if (answered.compareAndSet(false, true)) {
+                    first.complete(buyId);
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(e);
+            }
+        });
+        hedge.whenComplete((buyId, e) -> {
+            if (e == null) {
+                if (answered.compareAndSet(false, true)) {
+                    hedgeWon(primary);
+                    first.complete(buyId);
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(e);
+            }
+        });
+        return await(first);
+    }
+
+    /**
+     * Stops the threads used for hedged attempts.
+     */
+    void shutdown() {
+        attempts.shutdown();
+    }
+
+    private boolean reserveHedge() {
+        if (hedges.get() + 1 > maxHedgeRatio * calls.get()) {
+            return false;
+        }
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        hedges.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records how much sooner the hedge answered than the primary call, once the primary call finishes.
+     */
+    private void hedgeWon(CompletableFuture<String> primary) {
+        long answered = System.currentTimeMillis();
+        metrics.hedgeWon();
+        primary.whenComplete((buyId, e) -> {
+            if (e == null) {
+                metrics.hedgeSaved(System.currentTimeMillis() - answered);
+            }
+        });
+    }
+
+    /**
+     * Starts a call on the attempts pool. A hedge has already reserved its permit; a primary call waits for one.
+     */
+    private CompletableFuture<String> attemptAsync(String ticketId, String userId, int retry, boolean hedge) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        attempts.execute(() -> {
+            try {
+                if (!hedge) {
+                    permits.acquire();
+                }
+                result.complete(attempt(ticketId, userId, retry, hedge));
+            } catch (InterruptedException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Calls the webservice while holding a permit, which is released afterwards.
+     */
+    private String attempt(String ticketId, String userId, int retry, boolean hedge) {
+        PurchaseAttemptEvent event = new PurchaseAttemptEvent();
+        event.begin();
+        long start = System.currentTimeMillis();
+        try {
+            String buyId = webservice.buy(ticketId, userId);
+            event.succeeded = true;
+            return buyId;
+        } finally {
+            latencies.record(System.currentTimeMillis() - start);
+            permits.release();
+            event.end();
+            if (event.shouldCommit()) {
+                event.ticketId = ticketId;
+                event.userId = userId;
+                event.retry = retry;
+                event.hedge = hedge;
+                event.commit();
+            }
+        }
+    }
+
+    private static String await(CompletableFuture<String> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw failure(e);
+        }
+    }
+
+    private static IllegalStateException failure(ExecutionException e) {
+        if (e.getCause() instanceof IllegalStateException) {
+            return (IllegalStateException) e.getCause();
+        }
+        return new IllegalStateException(e.getCause());
+    }
+}
@@ -0,0 +1,353 @@
+package com.yahoo.javatraining.project2.cluster;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManager;
+import com.yahoo.javatraining.project2.TicketManagerException;
+import com.yahoo.javatraining.project2.TicketManagerOptions;
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.WebService;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One instance of a cluster of ticket managers sharing a ticket space.
+ * <p>
+ * The tickets are split into partitions, each with its own ticket file in a LeaseDirectory. An instance serves the
+ * partitions it holds a lease on, with one TicketManager per partition. Every third of the lease time it renews its
+ * leases and balances the partitions: it gives up partitions above its fair share of the live instances and claims
+ * unowned ones up to its fair share, so capacity grows with the number of instances.
+ * <p>
+ * When an instance dies, its leases expire and the other instances claim its partitions. They load the ticket files,
+ * so held tickets stay held and purchases in the BUYING state are completed. An instance stops serving and writing a
+ * partition a fifth of the lease time before the lease expires, to allow for clock skew; writes of a ticket manager
+ * that outlives its lease, e.g. after a long pause, are refused by its FencedStorage.
+ * <p>
+ * Requests for a ticket in a partition the instance does not own fail with a TicketNotOwnedException naming the
+ * owner. All methods are thread-safe.
+ */
+public class ClusteredTicketManager {
+    private final String instanceId;
+    private final LeaseDirectory directory;
+    private final long leaseMs;
+    private final long expireTimeMs;
+    private final Durability durability;
+    private final long groupWindowMs;
+    private final WebService webservice;
+    private final TicketManagerOptions options;
+    private final Map<Integer, Owned> owned = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService balancer = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Joins the cluster. Partitions are claimed in the background.
+     *
+     * @param instanceId    A unique id of this instance, such as its address. Other instances report it as the
+     *                      owner of the partitions of this instance.
+     * @param directory     The shared lease directory. Its ticket files must have been initialized.
+     * @param leaseMs       The lease time.
+     * @param expireTimeMs  The time after which a held ticket is automatically cancelled.
+     * @param durability    The durability of the partition ticket files.
+     * @param groupWindowMs The maximum time an update waits to be written in GROUP_FSYNC mode.
+     * @param webservice    A service instance to use for purchases.
+     * @param options       Tuning options of the ticket manager of each partition.
+     * @throws TicketManagerException If the lease directory cannot be written.
+     */
+    public ClusteredTicketManager(@NotNull String instanceId, @NotNull LeaseDirectory directory, long leaseMs,
+                                  long expireTimeMs, @NotNull Durability durability, long groupWindowMs,
+                                  @NotNull WebService webservice, @NotNull TicketManagerOptions options)
+            throws TicketManagerException {
+        if (leaseMs < 10) {
+            throw new IllegalArgumentException("leaseMs must be at least 10: " + leaseMs);
+        }
+        this.instanceId = instanceId;
+        this.directory = directory;
+        this.leaseMs = leaseMs;
+        this.expireTimeMs = expireTimeMs;
+        this.durability = durability;
+        this.groupWindowMs = groupWindowMs;
+        this.webservice = webservice;
+        this.options = options;
+        directory.heartbeat(instanceId, leaseMs);
+        balancer.scheduleWithFixedDelay(this::balance, 0, leaseMs / 3, TimeUnit.MILLISECONDS);
+    }
+
+    public @NotNull String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Returns the partitions this instance currently serves, in ascending order.
+     */
+    public @NotNull List<Integer> ownedPartitions() {
+        List<Integer> partitions = new ArrayList<>(owned.keySet());
+        Collections.sort(partitions);
+        return partitions;
+    }
+
+    /**
+     * Returns the number of AVAILABLE and HELD tickets in the partitions this instance serves.
+     */
+    public int availableCount() {
+        int count = 0;
+        for (Owned partition : owned.values()) {
+            count += partition.tmgr.availableCount();
+        }
+        return count;
+    }
+
+    /**
+     * Holds a ticket. Has the same contract as TicketManager.hold().
+     *
+     * @throws TicketNotOwnedException If the ticket is in a partition this instance does not serve.
+     */
+    public @NotNull String hold(@NotNull String userId, @NotNull String ticketId) throws TicketManagerException {
+        Owned partition = enter(ticketId);
+        try {
+            return partition.tmgr.hold(userId, ticketId);
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Holds any AVAILABLE ticket in the partitions this instance serves.
+     *
+     * @throws TicketManagerException If none of these partitions has an AVAILABLE ticket.
+     */
+    public @NotNull Ticket holdAny(@NotNull String userId) throws TicketManagerException {
+        for (Integer p : ownedPartitions()) {
+            Owned partition = owned.get(p);
+            if (partition == null || !partition.lock.readLock().tryLock()) {
+                continue;
+            }
+            try {
+                if (partition.serving() && partition.tmgr.availableCount() > 0) {
+                    return partition.tmgr.holdAny(userId);
+                }
+            } catch (TicketManagerException e) {
+                // taken concurrently; try the next partition
+            } finally {
+                partition.lock.readLock().unlock();
+            }
+        }
+        throw new TicketManagerException("No tickets are available");
+    }
+
+    /**
+     * Cancels a hold. Has the same contract as TicketManager.cancel().
+     *
+     * @throws TicketNotOwnedException If the ticket is in a partition this instance does not serve.
+     */
+    public boolean cancel(@NotNull String userId, @NotNull String ticketId, @NotNull String holdTransId)
+            throws TicketManagerException {
+        Owned partition = enter(ticketId);
+        try {
+            return partition.tmgr.cancel(userId, ticketId, holdTransId);
+        } finally {
+            partition.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Buys a held ticket. Has the same contract as TicketManager.buy(), except that the purchase fails if the
+     * partition is handed over while the webservice is called. The ticket is then BUYING in the ticket file, and
+     * the new owner completes the purchase.
+     *
+     * @throws TicketNotOwnedException If the ticket is in a partition this instance does not serve.
+     */
+    public @NotNull String buy(@NotNull String userId, @NotNull String ticketId, @NotNull String holdTransId)
+            throws TicketManagerException, InterruptedException {
+        Owned partition = enter(ticketId);
+        CompletableFuture<String> purchase;
+        try {
+            purchase = partition.tmgr.buyAsync(userId, ticketId, holdTransId);
+        } finally {
+            partition.lock.readLock().unlock(); //the webservice call does not hold up a handover
+        }
+        CompletableFuture<String> result = new CompletableFuture<>();
+        partition.purchases.add(result);
+        if (partition.dropped) {
+            partition.handedOver(result);
+        }
+        purchase.whenComplete((buyId, e) -> {
+            partition.purchases.remove(result);
+            if (e == null) {
+                result.complete(buyId);
+            } else {
+                result.completeExceptionally(e);
+            }
+        });
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TicketManagerException) {
+                throw (TicketManagerException) e.getCause();
+            }
+            throw new TicketManagerException("Purchase Failed...", e.getCause());
+        }
+    }
+
+    /**
+     * Leaves the cluster, handing all partitions over to the other instances.
+     *
+     * @throws InterruptedException If the shutdown was interrupted.
+     */
+    public void shutdown() throws InterruptedException {
+        balancer.shutdown();
+        balancer.awaitTermination(leaseMs, TimeUnit.MILLISECONDS);
+        for (Integer p : ownedPartitions()) {
+            drop(p, true);
+        }
+        directory.leave(instanceId);
+    }
+
+    /**
+     * Stops renewing leases and serving requests without handing the partitions over, as if the instance had
+     * died. The other instances claim the partitions once the leases expire.
+     */
+    void halt() throws InterruptedException {
+        balancer.shutdownNow();
+        balancer.awaitTermination(leaseMs, TimeUnit.MILLISECONDS);
+        for (Integer p : ownedPartitions()) {
+            drop(p, false);
+        }
+    }
+
+    /**
+     * Returns the partition of a ticket with its read lock held, if this instance serves it.
+     */
+    private Owned enter(String ticketId) throws TicketManagerException {
+        int p = directory.partitionOf(ticketId);
+        Owned partition = owned.get(p);
+        if (partition != null) {
+            partition.lock.readLock().lock();
+            if (partition.serving()) {
+                return partition;
+            }
+            partition.lock.readLock().unlock();
+        }
+        Lease lease = directory.current(p);
+        String owner = lease == null || lease.isExpired(System.currentTimeMillis()) ? null : lease.getOwner();
+        throw new TicketNotOwnedException("Ticket is not owned by this instance", owner);
+    }
+
+    /**
+     * Renews the leases of this instance and claims or gives up partitions to reach its fair share.
+     */
+    private void balance() {
+        try {
+            directory.heartbeat(instanceId, leaseMs);
+            for (Integer p : ownedPartitions()) {
+                Owned partition = owned.get(p);
+                Lease renewed = partition.serving() ? directory.renew(partition.storage.getLease(), leaseMs) : null;
+                if (renewed == null) {
+                    drop(p, false);
+                } else {
+                    partition.storage.renewed(renewed);
+                }
+            }
+
+            int live = Math.max(1, directory.liveInstances());
+            int share = (directory.getPartitions() + live - 1) / live;
+            List<Integer> partitions = ownedPartitions();
+            for (int i = partitions.size() - 1; i >= share; i--) {
+                drop(partitions.get(i), true);
+            }
+            for (int p = 0; p < directory.getPartitions() && owned.size() < share; p++) {
+                if (!owned.containsKey(p)) {
+                    claim(p);
+                }
+            }
+        } catch (TicketManagerException | RuntimeException e) {
+            // The directory is unavailable; leases that cannot be renewed stop being served when they expire
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void claim(int p) throws TicketManagerException {
+        Lease lease = directory.acquire(p, instanceId, leaseMs);
+        if (lease == null) {
+            return;
+        }
+        try {
+            FencedStorage storage = new FencedStorage(directory.ticketFile(p), durability, groupWindowMs, lease,
+                    leaseMs / 5);
+            owned.put(p, new Owned(storage, new TicketManager(expireTimeMs, storage, webservice, options)));
+        } catch (TicketManagerException | RuntimeException e) {
+            directory.release(lease);
+            throw e;
+        }
+    }
+
+    /**
+     * Stops serving a partition once the requests in progress have finished, and optionally gives up its lease.
+     * Purchases waiting for the webservice fail right away. When the lease is not released, e.g. because it was
+     * lost, the partition is fenced first, so that nothing more is written.
+     */
+    private void drop(int p, boolean release) throws InterruptedException {
+        Owned partition = owned.remove(p);
+        if (partition == null) {
+            return;
+        }
+        partition.lock.writeLock().lock();
+        try {
+            if (!release) {
+                partition.storage.fence();
+            }
+            partition.dropped = true;
+            for (CompletableFuture<String> purchase : partition.purchases) {
+                partition.handedOver(purchase);
+            }
+            partition.tmgr.shutdown();
+            if (release) {
+                directory.release(partition.storage.getLease());
+            }
+        } catch (TicketManagerException | IllegalStateException e) {
+            // The lease expires on its own; the final writes were refused or failed
+        } finally {
+            partition.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A partition served by this instance. Requests hold the read lock until the ticket manager has accepted them;
+     * the partition is dropped under the write lock, so that no request is being accepted when its ticket manager
+     * is shut down.
+     */
+    private static class Owned {
+        final FencedStorage storage;
+        final TicketManager tmgr;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final Set<CompletableFuture<String>> purchases = ConcurrentHashMap.newKeySet(); //waiting for the webservice
+        volatile boolean dropped;
+
+        Owned(FencedStorage storage, TicketManager tmgr) {
+            this.storage = storage;
+            this.tmgr = tmgr;
+        }
+
+        /**
+         * Returns true while the lease is safely within its expiry time.
+         */
+        boolean serving() {
+            return storage.isValid();
+        }
+
+        void handedOver(CompletableFuture<String> purchase) {
+            purchase.completeExceptionally(new TicketNotOwnedException("Partition was handed over during the purchase",
+                    null));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.yahoo.javatraining.project2.cluster;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManagerException;
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.Storage;
+
+import javax.validation.constraints.NotNull;
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * The ticket file of a leased partition. Writes are refused once the lease is within the clock skew margin of its
+ * expiry or the partition has been fenced, so that an instance that lost its lease, e.g. after a long pause, cannot
+ * overwrite the updates of the next owner.
+ */
+class FencedStorage extends Storage {
+    private final long marginMs;
+    private volatile Lease lease;
+    private volatile boolean fenced;
+
+    /**
+     * @param file          The ticket file of the partition.
+     * @param durability    When updates are forced to disk.
+     * @param groupWindowMs The maximum time an update waits to be written in GROUP_FSYNC mode.
+     * @param lease         The lease of the partition.
+     * @param marginMs      How long before the expiry of the lease writes stop, to allow for clock skew.
+     */
+    FencedStorage(@NotNull File file, @NotNull Durability durability, long groupWindowMs, @NotNull Lease lease,
+                  long marginMs) {
+        super(file, durability, groupWindowMs);
+        this.lease = lease;
+        this.marginMs = marginMs;
+    }
+
+    @NotNull Lease getLease() {
+        return lease;
+    }
+
+    /**
+     * Replaces the lease with a renewal of the same epoch.
+     */
+    void renewed(@NotNull Lease renewed) {
+        if (renewed.getEpoch() != lease.getEpoch()) {
+            throw new IllegalArgumentException("Lease epoch changed: " + lease + " -> " + renewed);
+        }
+        lease = renewed;
+    }
+
+    /**
+     * Refuses all further writes.
+     */
+    void fence() {
+        fenced = true;
+    }
+
+    /**
+     * Returns true while writes are allowed. This method is thread-safe.
+     */
+    boolean isValid() {
+        return !fenced && System.currentTimeMillis() < lease.getExpiresAtMs() - marginMs;
+    }
+
+    @Override
+    public void update(@NotNull Collection<Ticket> tickets) throws TicketManagerException {
+        check();
+        super.update(tickets);
+    }
+
+    @Override
+    public void flush() throws TicketManagerException {
+        check();
+        super.flush();
+    }
+
+    @Override
+    public void replace(@NotNull Collection<Ticket> tickets) throws TicketManagerException {
+        check();
+        super.replace(tickets);
+    }
+
+    private void check() throws TicketManagerException {
+        if (!isValid()) {
+            Lease l = lease;
+            throw new TicketManagerException("Lease of partition " + l.getPartition() + " in epoch " + l.getEpoch()
+                    + " is no longer held");
+        }
+    }
+}
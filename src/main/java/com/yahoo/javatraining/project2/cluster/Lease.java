@@ -0,0 +1,50 @@
+package com.yahoo.javatraining.project2.cluster;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * A time-bounded claim of an instance on a ticket partition. Every change of owner increases the epoch.
+ * Instances of this class are immutable.
+ */
+public final class Lease {
+    private final int partition;
+    private final String owner;
+    private final long epoch;
+    private final long expiresAtMs;
+
+    Lease(int partition, @NotNull String owner, long epoch, long expiresAtMs) {
+        this.partition = partition;
+        this.owner = owner;
+        this.epoch = epoch;
+        this.expiresAtMs = expiresAtMs;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public @NotNull String getOwner() {
+        return owner;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the wall-clock time at which the lease expires.
+     */
+    public long getExpiresAtMs() {
+        return expiresAtMs;
+    }
+
+    public boolean isExpired(long nowMs) {
+        return nowMs >= expiresAtMs;
+    }
+
+    @Override
+    public String toString() {
+        return "Lease{partition=" + partition + ", owner=" + owner + ", epoch=" + epoch
+                + ", expiresAtMs=" + expiresAtMs + "}";
+    }
+}
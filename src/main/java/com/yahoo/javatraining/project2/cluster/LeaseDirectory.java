@@ -0,0 +1,301 @@
+package com.yahoo.javatraining.project2.cluster;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManagerException;
+import com.yahoo.javatraining.project2.util.Storage;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps partition leases, instance heartbeats and the ticket files of all partitions in a directory shared by the
+ * instances of a cluster.
+ * <p>
+ * The lease of partition p in epoch e is the file {@code partition-p.lease.e}, containing the owner and the
+ * expiry time. The current lease is the one with the highest epoch. A new epoch is claimed by hard-linking a fully
+ * written file to its name, which fails if another instance claimed the epoch first, so at most one instance wins
+ * each epoch. The owner renews its lease by atomically replacing the content of its own epoch file.
+ * <p>
+ * Expiry times are wall-clock times, so the clocks of the instances must be synchronized to well within the lease
+ * time. All methods are thread-safe with respect to other instances sharing the directory.
+ */
+public class LeaseDirectory {
+    private static final Pattern INSTANCE_ID = Pattern.compile("[A-Za-z0-9._:-]+");
+
+    private final File dir;
+    private final int partitions;
+
+    /**
+     * @param dir        The shared directory.
+     * @param partitions The number of partitions the ticket space is split into. Must be the same for all
+     *                   instances.
+     */
+    public LeaseDirectory(@NotNull File dir, int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive: " + partitions);
+        }
+        this.dir = dir;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Splits a ticket file into the ticket files of the partitions, unless this has already been done.
+     *
+     * @param tickets The file of all tickets.
+     * @throws TicketManagerException If the files cannot be read or written.
+     */
+    public void initialize(@NotNull File tickets) throws TicketManagerException {
+        if (ticketFile(0).exists()) {
+            return;
+        }
+        List<List<Ticket>> split = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            split.add(new ArrayList<>());
+        }
+        for (Ticket ticket : new Storage(tickets).getTickets()) {
+            split.get(partitionOf(ticket.getId())).add(ticket);
+        }
+        // Partition 0 is written last, so that it only exists once all partitions do
+        for (int p = partitions - 1; p >= 0; p--) {
+            Storage storage = new Storage(ticketFile(p));
+            storage.replace(split.get(p));
+        }
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Returns the partition a ticket belongs to.
+     */
+    public int partitionOf(@NotNull String ticketId) {
+        return Math.floorMod(ticketId.hashCode(), partitions);
+    }
+
+    /**
+     * Returns the file holding the tickets of a partition.
+     */
+    public @NotNull File ticketFile(int partition) {
+        return new File(dir, "partition-" + partition + ".tickets");
+    }
+
+    /**
+     * Returns the current lease of a partition.
+     *
+     * @param partition A partition.
+     * @return The lease with the highest epoch, which may have expired, or null if the partition has never been
+     * leased.
+     * @throws TicketManagerException If the directory cannot be read.
+     */
+    public @Nullable Lease current(int partition) throws TicketManagerException {
+        long epoch = currentEpoch(partition);
+        return epoch < 0 ? null : read(partition, epoch);
+    }
+
+    /**
+     * Claims a partition if it has no live lease.
+     *
+     * @param partition A partition.
+     * @param owner     The id of the claiming instance.
+     * @param ttlMs     The lease time.
+     * @return The new lease, or null if the partition is leased by another instance or another instance claimed
+     * it concurrently.
+     * @throws TicketManagerException If the directory cannot be read or written.
+     */
+    public @Nullable Lease acquire(int partition, @NotNull String owner, long ttlMs) throws TicketManagerException {
+        checkInstanceId(owner);
+        Lease current = current(partition);
+        long now = System.currentTimeMillis();
+        if (current != null && !current.isExpired(now)) {
+            return null;
+        }
+        Lease lease = new Lease(partition, owner, current == null ? 0 : current.getEpoch() + 1, now + ttlMs);
+        Path tmp = write(lease);
+        try {
+            Files.createLink(leaseFile(partition, lease.getEpoch()), tmp);
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        } catch (IOException e) {
+            throw new TicketManagerException(e);
+        } finally {
+            delete(tmp);
+        }
+        if (current != null && current.getEpoch() > 0) {
+            delete(leaseFile(partition, current.getEpoch() - 1));
+        }
+        return lease;
+    }
+
+    /**
+     * Extends a lease that is still current and has not expired.
+     *
+     * @param lease A lease held by the caller.
+     * @param ttlMs The lease time, from now.
+     * @return The extended lease, or null if the lease has been lost.
+     * @throws TicketManagerException If the directory cannot be read or written.
+     */
+    public @Nullable Lease renew(@NotNull Lease lease, long ttlMs) throws TicketManagerException {
+        long now = System.currentTimeMillis();
+        if (lease.isExpired(now) || currentEpoch(lease.getPartition()) != lease.getEpoch()) {
+            return null;
+        }
+        Lease renewed = new Lease(lease.getPartition(), lease.getOwner(), lease.getEpoch(), now + ttlMs);
+        replace(leaseFile(lease.getPartition(), lease.getEpoch()), write(renewed));
+        return renewed;
+    }
+
+    /**
+     * Gives up a lease, so that another instance can claim the partition right away.
+     *
+     * @param lease A lease held by the caller.
+     * @throws TicketManagerException If the directory cannot be read or written.
+     */
+    public void release(@NotNull Lease lease) throws TicketManagerException {
+        if (lease.isExpired(System.currentTimeMillis()) || currentEpoch(lease.getPartition()) != lease.getEpoch()) {
+            return;
+        }
+        Lease released = new Lease(lease.getPartition(), lease.getOwner(), lease.getEpoch(), 0);
+        replace(leaseFile(lease.getPartition(), lease.getEpoch()), write(released));
+    }
+
+    /**
+     * Records that an instance is alive until the given time from now.
+     *
+     * @param instanceId An instance id.
+     * @param ttlMs      The time the heartbeat is valid.
+     * @throws TicketManagerException If the directory cannot be written.
+     */
+    public void heartbeat(@NotNull String instanceId, long ttlMs) throws TicketManagerException {
+        checkInstanceId(instanceId);
+        Path tmp = tmpFile();
+        try {
+            Files.write(tmp, String.valueOf(System.currentTimeMillis() + ttlMs).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new TicketManagerException(e);
+        }
+        replace(new File(dir, "member-" + instanceId).toPath(), tmp);
+    }
+
+    /**
+     * Removes the heartbeat of an instance that is leaving the cluster.
+     */
+    public void leave(@NotNull String instanceId) {
+        delete(new File(dir, "member-" + instanceId).toPath());
+    }
+
+    /**
+     * Returns the number of instances with a live heartbeat.
+     *
+     * @throws TicketManagerException If the directory cannot be read.
+     */
+    public int liveInstances() throws TicketManagerException {
+        long now = System.currentTimeMillis();
+        int live = 0;
+        for (String name : list()) {
+            if (name.startsWith("member-")) {
+                try {
+                    String content = new String(Files.readAllBytes(new File(dir, name).toPath()),
+                            StandardCharsets.UTF_8);
+                    if (Long.parseLong(content.trim()) > now) {
+                        live++;
+                    }
+                } catch (NoSuchFileException e) {
+                    // left concurrently
+                } catch (IOException | NumberFormatException e) {
+                    throw new TicketManagerException(e);
+                }
+            }
+        }
+        return live;
+    }
+
+    private long currentEpoch(int partition) throws TicketManagerException {
+        String prefix = "partition-" + partition + ".lease.";
+        long epoch = -1;
+        for (String name : list()) {
+            if (name.startsWith(prefix)) {
+                try {
+                    epoch = Math.max(epoch, Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a lease file
+                }
+            }
+        }
+        return epoch;
+    }
+
+    private Lease read(int partition, long epoch) throws TicketManagerException {
+        try {
+            String[] parts = new String(Files.readAllBytes(leaseFile(partition, epoch)), StandardCharsets.UTF_8)
+                    .trim().split(" ");
+            return new Lease(partition, parts[0], epoch, Long.parseLong(parts[1]));
+        } catch (IOException | RuntimeException e) {
+            throw new TicketManagerException("Invalid lease of partition " + partition, e);
+        }
+    }
+
+    /**
+     * Writes a lease to a temporary file.
+     */
+    private Path write(Lease lease) throws TicketManagerException {
+        Path tmp = tmpFile();
+        try {
+            Files.write(tmp, (lease.getOwner() + " " + lease.getExpiresAtMs()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new TicketManagerException(e);
+        }
+        return tmp;
+    }
+
+    private Path leaseFile(int partition, long epoch) {
+        return new File(dir, "partition-" + partition + ".lease." + epoch).toPath();
+    }
+
+    private Path tmpFile() {
+        return new File(dir, "tmp-" + UUID.randomUUID()).toPath();
+    }
+
+    private static void replace(Path target, Path tmp) throws TicketManagerException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            delete(tmp);
+            throw new TicketManagerException(e);
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // left for a later cleanup
+        }
+    }
+
+    private String[] list() throws TicketManagerException {
+        String[] names = dir.list();
+        if (names == null) {
+            throw new TicketManagerException("Cannot list " + dir);
+        }
+        return names;
+    }
+
+    private static void checkInstanceId(String instanceId) {
+        if (!INSTANCE_ID.matcher(instanceId).matches()) {
+            throw new IllegalArgumentException("Invalid instance id: " + instanceId);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.yahoo.javatraining.project2.cluster;
+
+import com.yahoo.javatraining.project2.TicketManagerException;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Thrown when a request reaches an instance that does not own the partition of the ticket.
+ * The request should be redirected to the owner, or retried later if the partition is being handed off.
+ */
+public class TicketNotOwnedException extends TicketManagerException {
+    private final String owner;
+
+    /**
+     * @param message An exception message.
+     * @param owner   The instance that currently owns the partition, or null if the partition has no live owner.
+     */
+    public TicketNotOwnedException(@NotNull String message, @Nullable String owner) {
+        super(message);
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the instance that currently owns the partition of the ticket.
+     *
+     * @return An instance id, or null if the partition has no live owner.
+     */
+    public @Nullable String getOwner() {
+        return owner;
+    }
+}
@@ -0,0 +1,596 @@
+package com.yahoo.javatraining.project2.http;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManager;
+import com.yahoo.javatraining.project2.TicketManagerException;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An embedded, non-blocking HTTP/1.1 front-end for a TicketManager.
+ * <p>
+ * Connections are multiplexed over a small pool of selector threads. Requests are handed to a worker pool, and
+ * purchases complete asynchronously, so no thread is held while the webservice is called. Connections are kept
+ * alive by default and may pipeline requests; responses are always written in request order.
+ * <p>
+ * All endpoints take their arguments as query parameters and answer with a text/plain body:
+ * <pre>
+ * POST /hold?user=U&amp;ticket=T          hold transaction id
+ * POST /holdAny?user=U                 "ticketId holdTransId"
+ * POST /cancel?user=U&amp;ticket=T&amp;tx=H    "true" or "false"
+ * POST /buy?user=U&amp;ticket=T&amp;tx=H       buy transaction id
+ * GET  /availableCount                 number of AVAILABLE and HELD tickets
+ * </pre>
+ * A TicketManagerException is answered with 409, or with 503 and a Retry-After header if the request was rejected
+ * because of overload. Missing parameters are answered with 400.
+ */
+public class TicketHttpServer implements Closeable {
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int MAX_PIPELINED = 32; //reading stops while this many responses are outstanding
+
+    private final TicketManager tmgr;
+    private final ServerSocketChannel server;
+    private final Loop[] loops;
+    private final ExecutorService selectors;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean open = true;
+
+    /**
+     * Starts serving the ticket manager.
+     *
+     * @param tmgr            The ticket manager.
+     * @param address         The address to listen on. A port of 0 picks a free port.
+     * @param selectorThreads The number of selector threads.
+     * @param workerThreads   The number of threads that run requests.
+     * @throws IOException If the address cannot be bound.
+     */
+    public TicketHttpServer(@NotNull TicketManager tmgr, @NotNull InetSocketAddress address,
+                            int selectorThreads, int workerThreads) throws IOException {
+        if (selectorThreads < 1 || workerThreads < 1) {
+            throw new IllegalArgumentException("Thread counts must be positive");
+        }
+        this.tmgr = tmgr;
+        this.server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+
+        loops = new Loop[selectorThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop();
+        }
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        selectors = Executors.newFixedThreadPool(selectorThreads);
+        workers = Executors.newFixedThreadPool(workerThreads);
+        for (Loop loop : loops) {
+            selectors.execute(loop);
+        }
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting requests and closes all connections. Purchases in progress still complete in the ticket
+     * manager, but their responses are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        server.close();
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+        selectors.shutdown();
+        workers.shutdown();
+        try {
+            selectors.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A selector thread. Other threads interact with its connections only by queuing tasks.
+     */
+    private class Loop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (open) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                conn.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.flush();
+                            }
+                        } catch (IOException e) {
+                            conn.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // Shutting down
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        private void accept() {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    return; //e.g. out of file descriptors; the pending connections are accepted once selected again
+                }
+                if (channel == null) {
+                    return;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                    continue;
+                }
+                Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+                loop.execute(() -> {
+                    try {
+                        Connection conn = new Connection(loop, accepted);
+                        conn.key = accepted.register(loop.selector, SelectionKey.OP_READ, conn);
+                    } catch (IOException e) {
+                        closeQuietly(accepted);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A client connection. Only touched by the thread of its loop.
+     */
+    private class Connection {
+        final Loop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096); //in write mode
+        int scanned; //the input before this position holds no complete header terminator
+        final ArrayDeque<Exchange> exchanges = new ArrayDeque<>(); //in request order
+        boolean closing; //no more requests are read
+
+        Connection(Loop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            if (channel.read(in) < 0) {
+                closing = true;
+                if (exchanges.isEmpty()) {
+                    close();
+                } else {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                return;
+            }
+            parse();
+        }
+
+        /**
+         * Dispatches all complete requests in the input buffer.
+         */
+        void parse() {
+            while (!closing && exchanges.size() < MAX_PIPELINED) {
+                int end = headerEnd();
+                if (end < 0) {
+                    if (in.position() > MAX_HEADER_BYTES) {
+                        reject(431, "Request Header Fields Too Large");
+                    }
+                    break;
+                }
+                Request request = Request.parse(new String(in.array(), 0, end, StandardCharsets.ISO_8859_1));
+                if (request == null) {
+                    reject(400, "Bad Request");
+                    break;
+                }
+                if (request.contentLength < 0 || request.contentLength > MAX_BODY_BYTES) {
+                    reject(413, "Payload Too Large");
+                    break;
+                }
+                int length = end + 4 + request.contentLength;
+                if (in.position() < length) {
+                    if (in.capacity() < length) {
+                        ByteBuffer bigger = ByteBuffer.allocate(length);
+                        in.flip();
+                        bigger.put(in);
+                        in = bigger;
+                    }
+                    break;
+                }
+                in.flip();
+                in.position(length);
+                in.compact();
+                scanned = 0;
+
+                Exchange exchange = new Exchange(this, request.keepAlive, request.http10);
+                exchanges.add(exchange);
+                if (!request.keepAlive) {
+                    closing = true;
+                }
+                workers.execute(() -> handle(request).thenAccept(exchange::complete));
+            }
+            updateInterest();
+        }
+
+        /**
+         * Returns the offset of the blank line that ends the headers of the next request, or -1 if it has not been
+         * read yet. Each byte is scanned once, however many reads the headers take.
+         */
+        private int headerEnd() {
+            byte[] bytes = in.array();
+            int i = scanned;
+            for (; i + 3 < in.position(); i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    scanned = i;
+                    return i;
+                }
+            }
+            scanned = i;
+            return -1;
+        }
+
+        private void reject(int status, String reason) {
+            Exchange exchange = new Exchange(this, false, false);
+            exchanges.add(exchange);
+            closing = true;
+            exchange.complete(new Response(status, reason, reason));
+        }
+
+        /**
+         * Writes the completed responses at the head of the pipeline.
+         */
+        void flush() throws IOException {
+            Exchange head;
+            while ((head = exchanges.peek()) != null && head.out != null) {
+                channel.write(head.out);
+                if (head.out.hasRemaining()) {
+                    break;
+                }
+                exchanges.poll();
+                if (!head.keepAlive) {
+                    close();
+                    return;
+                }
+            }
+            if (closing && exchanges.isEmpty()) {
+                close();
+                return;
+            }
+            parse();
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            Exchange head = exchanges.peek();
+            int ops = 0;
+            if (!closing && exchanges.size() < MAX_PIPELINED) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (head != null && head.out != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * A request and its response slot in the pipeline of a connection.
+     */
+    private static class Exchange {
+        final Connection conn;
+        final boolean keepAlive;
+        final boolean http10;
+        ByteBuffer out; //set by the loop thread once the response is ready
+
+        Exchange(Connection conn, boolean keepAlive, boolean http10) {
+            this.conn = conn;
+            this.keepAlive = keepAlive;
+            this.http10 = http10;
+        }
+
+        void complete(Response response) {
+            ByteBuffer bytes = response.encode(keepAlive, http10);
+            conn.loop.execute(() -> {
+                if (!conn.channel.isOpen()) {
+                    return;
+                }
+                out = bytes;
+                try {
+                    conn.flush();
+                } catch (IOException e) {
+                    conn.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a request against the ticket manager.
+     */
+    private CompletableFuture<Response> handle(Request request) {
+        try {
+            switch (request.path) {
+                case "/availableCount":
+                    if (!"GET".equals(request.method)) {
+                        return done(Response.methodNotAllowed());
+                    }
+                    return done(Response.ok(String.valueOf(tmgr.availableCount())));
+                case "/hold":
+                case "/holdAny":
+                case "/cancel":
+                case "/buy":
+                    if (!"POST".equals(request.method)) {
+                        return done(Response.methodNotAllowed());
+                    }
+                    break;
+                default:
+                    return done(new Response(404, "Not Found", "Not Found"));
+            }
+
+            String userId = request.param("user");
+            switch (request.path) {
+                case "/hold":
+                    return done(Response.ok(tmgr.hold(userId, request.param("ticket"))));
+                case "/holdAny":
+                    Ticket ticket = tmgr.holdAny(userId);
+                    return done(Response.ok(ticket.getId() + " " + ticket.getHoldTransId()));
+                case "/cancel":
+                    return done(Response.ok(String.valueOf(
+                            tmgr.cancel(userId, request.param("ticket"), request.param("tx")))));
+                default:
+                    return tmgr.buyAsync(userId, request.param("ticket"), request.param("tx"))
+                            .handle((buyId, e) -> e == null ? Response.ok(buyId) : Response.failure(e));
+            }
+        } catch (MissingParameterException e) {
+            return done(new Response(400, "Bad Request", e.getMessage()));
+        } catch (Exception e) {
+            return done(Response.failure(e));
+        }
+    }
+
+    private static CompletableFuture<Response> done(Response response) {
+        return CompletableFuture.completedFuture(response);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * The parts of an HTTP request the server uses.
+     */
+    private static class Request {
+        String method;
+        String path;
+        Map<String, String> params = new HashMap<>();
+        int contentLength;
+        boolean keepAlive;
+        boolean http10;
+
+        /**
+         * Parses the request line and headers, or returns null if they are malformed.
+         */
+        static Request parse(String head) {
+            String[] lines = head.split("\r\n");
+            String[] parts = lines[0].split(" ");
+            if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+                return null;
+            }
+            Request request = new Request();
+            request.method = parts[0];
+            request.http10 = parts[2].equals("HTTP/1.0");
+            String connection = null;
+            try {
+                for (int i = 1; i < lines.length; i++) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon < 0) {
+                        return null;
+                    }
+                    String name = lines[i].substring(0, colon).trim();
+                    String value = lines[i].substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        request.contentLength = Integer.parseInt(value);
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        connection = value;
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        return null; //chunked bodies are not supported
+                    }
+                }
+
+                int query = parts[1].indexOf('?');
+                request.path = query < 0 ? parts[1] : parts[1].substring(0, query);
+                if (query >= 0) {
+                    for (String pair : parts[1].substring(query + 1).split("&")) {
+                        int eq = pair.indexOf('=');
+                        if (eq > 0) {
+                            request.params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                                    URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                        }
+                    }
+                }
+            } catch (NumberFormatException | UnsupportedEncodingException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                return null; //malformed percent-encoding
+            }
+            request.keepAlive = request.http10
+                    ? "keep-alive".equalsIgnoreCase(connection)
+                    : !"close".equalsIgnoreCase(connection);
+            return request;
+        }
+
+        String param(String name) throws MissingParameterException {
+            String value = params.get(name);
+            if (value == null || value.isEmpty()) {
+                throw new MissingParameterException("Missing parameter: " + name);
+            }
+            return value;
+        }
+    }
+
+    private static class MissingParameterException extends Exception {
+        MissingParameterException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final String reason;
+        final String body;
+        long retryAfterMs;
+
+        Response(int status, String reason, String body) {
+            this.status = status;
+            this.reason = reason;
+            this.body = body;
+        }
+
+        static Response ok(String body) {
+            return new Response(200, "OK", body);
+        }
+
+        static Response methodNotAllowed() {
+            return new Response(405, "Method Not Allowed", "Method Not Allowed");
+        }
+
+        /**
+         * Maps a failed request to a response.
+         */
+        static Response failure(Throwable e) {
+            while (e.getCause() != null && !(e instanceof TicketManagerException)) {
+                e = e.getCause();
+            }
+            if (!(e instanceof TicketManagerException)) {
+                return new Response(500, "Internal Server Error", String.valueOf(e.getMessage()));
+            }
+            TicketManagerException tme = (TicketManagerException) e;
+            if (tme.getRetryAfterMs() > 0) {
+                Response response = new Response(503, "Service Unavailable", tme.getMessage());
+                response.retryAfterMs = tme.getRetryAfterMs();
+                return response;
+            }
+            return new Response(409, "Conflict", tme.getMessage());
+        }
+
+        ByteBuffer encode(boolean keepAlive, boolean http10) {
+            byte[] content = body.getBytes(StandardCharsets.UTF_8);
+            StringBuilder head = new StringBuilder();
+            head.append(http10 ? "HTTP/1.0 " : "HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            head.append("Content-Type: text/plain; charset=UTF-8\r\n");
+            head.append("Content-Length: ").append(content.length).append("\r\n");
+            if (retryAfterMs > 0) {
+                // Retry-After is in whole seconds
+                head.append("Retry-After: ").append((retryAfterMs + 999) / 1000).append("\r\n");
+            }
+            if (!keepAlive) {
+                head.append("Connection: close\r\n");
+            } else if (http10) {
+                head.append("Connection: keep-alive\r\n");
+            }
+            head.append("\r\n");
+            byte[] header = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer out = ByteBuffer.allocate(header.length + content.length);
+            out.put(header).put(content);
+            out.flip();
+            return out;
+        }
+    }
+}
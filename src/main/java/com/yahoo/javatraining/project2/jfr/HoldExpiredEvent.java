@@ -0,0 +1,36 @@
+package com.yahoo.javatraining.project2.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A hold was cancelled because it expired. Disabled by default.
+ */
+@Name("com.yahoo.javatraining.project2.HoldExpired")
+@Label("Hold Expired")
+@Category({"Ticket Manager", "Holds"})
+@Description("A hold cancelled by the ticket manager after the expiry time")
+@Enabled(false)
+@StackTrace(false)
+public class HoldExpiredEvent extends Event {
+    @Label("Ticket")
+    public String ticketId;
+
+    @Label("User")
+    public String userId;
+
+    @Label("Held")
+    @Description("How long the ticket was held")
+    @Timespan(Timespan.MILLISECONDS)
+    public long heldMs;
+
+    @Label("Handed Over")
+    @Description("Whether the hold passed directly to a waiting user")
+    public boolean handedOver;
+}
@@ -0,0 +1,22 @@
+package com.yahoo.javatraining.project2.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A thread waited for a lock of the ticket manager that was held by another thread. The duration of the event is
+ * the wait time; uncontended acquisitions are not recorded. Disabled by default.
+ */
+@Name("com.yahoo.javatraining.project2.LockWait")
+@Label("Lock Wait")
+@Category({"Ticket Manager", "Locks"})
+@Description("A contended acquisition of a ticket manager lock")
+@Enabled(false)
+public class LockWaitEvent extends Event {
+    @Label("Lock")
+    public String lock;
+}
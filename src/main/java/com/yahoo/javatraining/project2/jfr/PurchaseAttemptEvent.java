@@ -0,0 +1,38 @@
+package com.yahoo.javatraining.project2.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A call to the purchase webservice. The duration of the event is the latency of the call. A hedged purchase
+ * records one event per call. Disabled by default.
+ */
+@Name("com.yahoo.javatraining.project2.PurchaseAttempt")
+@Label("Purchase Attempt")
+@Category({"Ticket Manager", "Webservice"})
+@Description("A call to the purchase webservice")
+@Enabled(false)
+@StackTrace(false)
+public class PurchaseAttemptEvent extends Event {
+    @Label("Ticket")
+    public String ticketId;
+
+    @Label("User")
+    public String userId;
+
+    @Label("Retry")
+    @Description("The number of failed calls that preceded this call for the purchase")
+    public int retry;
+
+    @Label("Hedge")
+    @Description("Whether the call duplicated a slow call")
+    public boolean hedge;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
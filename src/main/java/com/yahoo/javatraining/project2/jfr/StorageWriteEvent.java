@@ -0,0 +1,33 @@
+package com.yahoo.javatraining.project2.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The ticket file was rewritten with updated tickets. The duration of the event covers writing, forcing and
+ * replacing the file. Disabled by default.
+ */
+@Name("com.yahoo.javatraining.project2.StorageWrite")
+@Label("Storage Write")
+@Category({"Ticket Manager", "Storage"})
+@Description("A rewrite of the ticket file")
+@Enabled(false)
+@StackTrace(false)
+public class StorageWriteEvent extends Event {
+    @Label("Updated Tickets")
+    public int tickets;
+
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytes;
+
+    @Label("Forced")
+    @Description("Whether the file was forced to disk")
+    public boolean forced;
+}
@@ -0,0 +1,34 @@
+package com.yahoo.javatraining.project2.jfr;
+
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A non-fair ReentrantLock that records a LockWaitEvent when lock() has to wait. An uncontended acquisition
+ * costs one extra tryLock(), and the event costs nothing unless it is enabled in a recording.
+ */
+public class TracedLock extends ReentrantLock {
+    private final String name;
+
+    /**
+     * @param name The name of the lock in the events.
+     */
+    public TracedLock(@NotNull String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void lock() {
+        if (tryLock()) {
+            return;
+        }
+        LockWaitEvent event = new LockWaitEvent();
+        event.begin();
+        super.lock();
+        event.end();
+        if (event.shouldCommit()) {
+            event.lock = name;
+            event.commit();
+        }
+    }
+}
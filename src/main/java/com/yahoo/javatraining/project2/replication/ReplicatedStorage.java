@@ -0,0 +1,377 @@
+package com.yahoo.javatraining.project2.replication;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManagerException;
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.Storage;
+
+import javax.validation.constraints.NotNull;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage for a primary ticket manager that ships every update to a StandbyReplica.
+ * <p>
+ * Each update is applied to the local file and then queued for a shipper thread, which sends the queued updates
+ * to the standby in the order of the updates. When the standby connects, or reconnects after a failure, it first
+ * receives a snapshot of the whole file. Shipping is asynchronous: an update is not acknowledged by the standby,
+ * and neither a standby that cannot be reached nor a failed snapshot ever fails or delays an update. If the queue
+ * is full, because the standby or the network cannot keep up, the queued updates are dropped and the standby is
+ * sent a new snapshot instead. The shipper reconnects at most once per reconnect interval.
+ * <p>
+ * The wire format is line based and uses the line format of the ticket file:
+ * <pre>
+ * S          start of a snapshot; the standby discards its state
+ * T line     a ticket, either part of a snapshot or an update
+ * E          end of a snapshot
+ * </pre>
+ */
+public class ReplicatedStorage extends Storage implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final List<String> WAKEUP = Collections.emptyList();
+
+    private final InetSocketAddress standby;
+
+    private final long reconnectMs;
+
+    // Serialized updates waiting for the shipper.
+    private final BlockingQueue<List<String>> queue;
+
+    private final ExecutorService shipper = Executors.newSingleThreadExecutor();
+
+    private volatile boolean open = true;
+
+    // Set when queued updates were dropped, so that the standby needs a new snapshot.
+    private volatile boolean resync;
+
+    // Set by connect() to make the shipper connect now; completed with the connection state.
+    private volatile CompletableFuture<Boolean> connectRequest;
+
+    // Incremented after every flush, so that a snapshot can wait for the updates pending at the time.
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong shipped = new AtomicLong();
+
+    private final AtomicLong snapshots = new AtomicLong();
+
+    private final AtomicLong overflows = new AtomicLong();
+
+    private volatile Socket socket;
+
+    // Only used by the shipper thread.
+    private Writer out;
+
+    // Time of the last failed connection attempt. Only used by the shipper thread.
+    private long lastAttempt;
+
+    /**
+     * Manages the tickets in a file and ships updates to a standby.
+     *
+     * @param file          Non-null file of tickets.
+     * @param durability    When updates are forced to disk.
+     * @param groupWindowMs The maximum time an update waits to be written in GROUP_FSYNC mode.
+     * @param standby       The address the standby listens on.
+     * @param reconnectMs   The minimum time between connection attempts.
+     */
+    public ReplicatedStorage(@NotNull File file, @NotNull Durability durability, long groupWindowMs,
+                             @NotNull InetSocketAddress standby, long reconnectMs) {
+        this(file, durability, groupWindowMs, standby, reconnectMs, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Manages the tickets in a file and ships updates to a standby.
+     *
+     * @param file          Non-null file of tickets.
+     * @param durability    When updates are forced to disk.
+     * @param groupWindowMs The maximum time an update waits to be written in GROUP_FSYNC mode.
+     * @param standby       The address the standby listens on.
+     * @param reconnectMs   The minimum time between connection attempts.
+     * @param queueCapacity The number of updates that may wait for the shipper before they are dropped in favor
+     *                      of a new snapshot.
+     */
+    public ReplicatedStorage(@NotNull File file, @NotNull Durability durability, long groupWindowMs,
+                             @NotNull InetSocketAddress standby, long reconnectMs, int queueCapacity) {
+        super(file, durability, groupWindowMs);
+        if (reconnectMs <= 0 || queueCapacity < 1) {
+            throw new IllegalArgumentException("reconnectMs and queueCapacity must be positive");
+        }
+        this.standby = standby;
+        this.reconnectMs = reconnectMs;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        shipper.execute(this::ship);
+    }
+
+    /**
+     * Returns true if the standby is currently connected. This method is thread-safe.
+     *
+     * @return True if connected.
+     */
+    public boolean isConnected() {
+        Socket s = socket;
+        return s != null && !s.isClosed();
+    }
+
+    /**
+     * Returns the number of ticket updates shipped to the standby, not counting snapshots.
+     * This method is thread-safe.
+     *
+     * @return An update count.
+     */
+    public long getShippedCount() {
+        return shipped.get();
+    }
+
+    /**
+     * Returns the number of snapshots shipped to the standby. This method is thread-safe.
+     *
+     * @return A snapshot count.
+     */
+    public long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    /**
+     * Returns the number of times queued updates were dropped because the queue was full.
+     * This method is thread-safe.
+     *
+     * @return An overflow count.
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    /**
+     * Updates the storage and then queues the updates for the standby.
+     * This method is not thread-safe.
+     */
+    @Override
+    public void update(@NotNull Collection<Ticket> tickets) throws TicketManagerException {
+        super.update(tickets);
+        if (tickets.isEmpty() || !open) {
+            return;
+        }
+        List<String> lines = new ArrayList<>(tickets.size());
+        for (Ticket ticket : tickets) {
+            lines.add(serialize(ticket)); //the tickets may change once this method returns
+        }
+        if (!queue.offer(lines)) {
+            // The updates are in the file or pending, so the next snapshot includes them
+            overflows.incrementAndGet();
+            resync = true;
+            queue.clear();
+            queue.offer(WAKEUP);
+        }
+    }
+
+    /**
+     * Writes and forces all pending updates to disk.
+     * This method is not thread-safe.
+     */
+    @Override
+    public void flush() throws TicketManagerException {
+        super.flush();
+        flushes.incrementAndGet();
+    }
+
+    /**
+     * Disconnects from the standby. The shipper reconnects after the reconnect interval.
+     * This method is thread-safe.
+     */
+    public void disconnect() {
+        Socket s = socket;
+        if (s != null) {
+            closeQuietly(s); //fails the next write of the shipper
+        }
+    }
+
+    /**
+     * Connects to the standby and ships a snapshot, unless already connected. The shipper connects on its own;
+     * this method lets the standby catch up before the first update. Pending updates are written first.
+     * This method is not thread-safe.
+     *
+     * @return True if the standby is connected.
+     * @throws TicketManagerException If the pending updates could not be written.
+     */
+    public boolean connect() throws TicketManagerException {
+        flush();
+        CompletableFuture<Boolean> request = new CompletableFuture<>();
+        connectRequest = request;
+        queue.offer(WAKEUP);
+        try {
+            return request.get(2 * CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Ships the queued updates, stops the shipper and disconnects from the standby. Pending updates are written
+     * first. This method is not thread-safe.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (TicketManagerException e) {
+            // Shipped updates are already in the file or pending; the standby gets what is queued
+        }
+        open = false;
+        queue.offer(WAKEUP);
+        shipper.shutdown();
+        try {
+            shipper.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs on the shipper thread until the storage is closed.
+     */
+    private void ship() {
+        try {
+            while (true) {
+                List<String> batch = queue.poll(reconnectMs, TimeUnit.MILLISECONDS);
+                CompletableFuture<Boolean> request = connectRequest;
+                if (request != null) {
+                    connectRequest = null;
+                    lastAttempt = 0;
+                }
+                long snapshot = snapshots.get();
+                boolean synced = sync();
+                if (request != null) {
+                    request.complete(synced);
+                }
+                if (batch != null && !batch.isEmpty() && synced && snapshot == snapshots.get() && !resync) {
+                    send(batch); //a snapshot taken after the batch was dequeued already includes it
+                }
+                if (!open && queue.isEmpty()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            disconnected(false);
+        }
+    }
+
+    /**
+     * Connects to the standby and ships a snapshot if needed.
+     *
+     * @return True if the standby is connected and in sync.
+     */
+    private boolean sync() throws InterruptedException {
+        if (out == null) {
+            if (System.currentTimeMillis() - lastAttempt < reconnectMs) {
+                return false;
+            }
+            try {
+                Socket s = new Socket();
+                socket = s;
+                s.connect(standby, CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                disconnected(true);
+                return false;
+            }
+            resync = true;
+        }
+        if (!resync) {
+            return true;
+        }
+        resync = false;
+        try {
+            awaitFlush();
+            out.write("S\n");
+            // The file is replaced atomically by updates, so it can be read while the owner updates it
+            for (Ticket ticket : getTickets()) {
+                out.write("T ");
+                out.write(serialize(ticket));
+                out.write('\n');
+            }
+            out.write("E\n");
+            out.flush();
+            snapshots.incrementAndGet();
+            return true;
+        } catch (IOException | TicketManagerException | RuntimeException e) {
+            disconnected(true);
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the updates pending in GROUP_FSYNC mode have been written to the file. The owner of the storage
+     * flushes at least once per window.
+     */
+    private void awaitFlush() throws InterruptedException {
+        if (getDurability() != Durability.GROUP_FSYNC) {
+            return;
+        }
+        long flushed = flushes.get();
+        while (open && flushes.get() == flushed) {
+            Thread.sleep(Math.max(1, Math.min(10, getGroupWindowMs())));
+        }
+    }
+
+    private void send(List<String> batch) {
+        try {
+            for (String line : batch) {
+                out.write("T ");
+                out.write(line);
+                out.write('\n');
+            }
+            out.flush();
+            shipped.addAndGet(batch.size());
+        } catch (IOException e) {
+            disconnected(true); //the reconnect snapshot includes the batch
+        }
+    }
+
+    private void disconnected(boolean failed) {
+        Socket s = socket;
+        if (s != null) {
+            closeQuietly(s);
+        }
+        socket = null;
+        out = null;
+        if (failed) {
+            lastAttempt = System.currentTimeMillis();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.yahoo.javatraining.project2.replication;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManager;
+import com.yahoo.javatraining.project2.TicketManagerException;
+import com.yahoo.javatraining.project2.TicketManagerOptions;
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.Storage;
+import com.yahoo.javatraining.project2.util.WebService;
+
+import javax.validation.constraints.NotNull;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hot standby for a primary ticket manager whose storage is a ReplicatedStorage.
+ * <p>
+ * The standby accepts one primary connection at a time and applies the shipped snapshot and updates to its own
+ * storage file, while also keeping the ticket state in memory. When the primary fails, promote() starts a ticket
+ * manager from the in-memory state without reading the file. Tickets in the BUYING state are completed by the new
+ * ticket manager in the background, as after a restart.
+ * <p>
+ * Promotion does not fence the old primary. The caller must make sure that the primary is no longer serving
+ * requests before promoting the standby.
+ */
+public class StandbyReplica implements Closeable {
+    private final ReplicaStorage storage;
+    private final ServerSocket server;
+    private final ExecutorService receiver;
+    private final ReentrantLock lock = new ReentrantLock(); //guards storage while receiving
+    private volatile Socket connection;
+    private volatile boolean open = true;
+    private final AtomicLong applied = new AtomicLong();
+
+    /**
+     * Starts listening for a primary.
+     *
+     * @param file          The file the standby keeps its copy of the tickets in.
+     * @param durability    When applied updates are forced to disk.
+     * @param groupWindowMs The maximum time an update waits to be written in GROUP_FSYNC mode.
+     * @param address       The address to listen on. A port of 0 picks a free port.
+     * @throws IOException If the address cannot be bound.
+     */
+    public StandbyReplica(@NotNull File file, @NotNull Durability durability, long groupWindowMs,
+                          @NotNull InetSocketAddress address) throws IOException {
+        storage = new ReplicaStorage(file, durability, groupWindowMs);
+        server = new ServerSocket();
+        server.bind(address);
+        receiver = Executors.newSingleThreadExecutor();
+        receiver.execute(this::receive);
+    }
+
+    /**
+     * Returns the port the standby is listening on.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Returns the number of updates applied, not counting snapshots. This method is thread-safe.
+     *
+     * @return An update count.
+     */
+    public long getAppliedCount() {
+        return applied.get();
+    }
+
+    /**
+     * Returns the replicated tickets, or an empty list if no snapshot has been received yet.
+     * This method is thread-safe.
+     *
+     * @return A list of ticket copies.
+     */
+    public @NotNull List<Ticket> tickets() {
+        lock.lock();
+        try {
+            return storage.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops replicating and starts a ticket manager from the replicated state. The ticket manager uses the storage
+     * file of the standby from then on.
+     *
+     * @param expireTimeMs The hold expiry time of the new ticket manager.
+     * @param webservice   The purchase webservice.
+     * @param options      The options of the new ticket manager.
+     * @return The promoted ticket manager.
+     * @throws TicketManagerException If no snapshot has been received or the ticket manager cannot be started.
+     */
+    public @NotNull TicketManager promote(long expireTimeMs, @NotNull WebService webservice,
+                                         @NotNull TicketManagerOptions options) throws TicketManagerException {
+        lock.lock();
+        try {
+            if (storage.state == null) {
+                throw new TicketManagerException("No snapshot has been received from the primary");
+            }
+            stop();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            receiver.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TicketManagerException(e);
+        }
+        storage.flush();
+        return new TicketManager(expireTimeMs, storage, webservice, options);
+    }
+
+    /**
+     * Stops replicating without promoting the standby.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            stop();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void stop() {
+        open = false;
+        closeQuietly(server);
+        Socket s = connection;
+        if (s != null) {
+            closeQuietly(s);
+        }
+        receiver.shutdown();
+    }
+
+    /**
+     * Accepts primary connections and applies what they ship until the standby is stopped.
+     */
+    private void receive() {
+        while (open) {
+            try (Socket s = server.accept()) {
+                connection = s;
+                BufferedReader rd = new BufferedReader(
+                        new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                LinkedHashMap<String, Ticket> snapshot = null; //while a snapshot is being received
+                String line;
+                while ((line = rd.readLine()) != null) {
+                    lock.lock();
+                    try {
+                        if (!open) {
+                            return;
+                        }
+                        if (line.equals("S")) {
+                            snapshot = new LinkedHashMap<>();
+                        } else if (line.equals("E") && snapshot != null) {
+                            storage.replace(snapshot.values());
+                            snapshot = null;
+                        } else if (line.startsWith("T ")) {
+                            Ticket ticket = Storage.deserialize(line.substring(2));
+                            if (snapshot != null) {
+                                snapshot.put(ticket.getId(), ticket);
+                            } else if (storage.state != null) {
+                                storage.update(ticket);
+                                applied.incrementAndGet();
+                            }
+                        } else {
+                            throw new IllegalStateException("Invalid message: " + line);
+                        }
+                        if (!rd.ready()) {
+                            storage.flush(); //end of a burst of updates
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (IOException | TicketManagerException | RuntimeException e) {
+                // The primary went away or sent garbage; wait for it to reconnect and send a new snapshot
+            } finally {
+                connection = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Storage that also keeps the tickets in memory, so that a promoted ticket manager does not read the file.
+     */
+    private static class ReplicaStorage extends Storage {
+        LinkedHashMap<String, Ticket> state; //null until the first snapshot
+
+        ReplicaStorage(File file, Durability durability, long groupWindowMs) {
+            super(file, durability, groupWindowMs);
+        }
+
+        @Override
+        public @NotNull List<Ticket> getTickets() throws TicketManagerException {
+            return state == null ? super.getTickets() : snapshot();
+        }
+
+        /**
+         * Returns copies of the replicated tickets, or an empty list if no snapshot has been received yet.
+         */
+        List<Ticket> snapshot() {
+            List<Ticket> results = new ArrayList<>();
+            if (state != null) {
+                for (Ticket ticket : state.values()) {
+                    results.add(copy(ticket));
+                }
+            }
+            return results;
+        }
+
+        @Override
+        public void update(@NotNull Collection<Ticket> tickets) throws TicketManagerException {
+            super.update(tickets);
+            if (state != null) {
+                for (Ticket ticket : tickets) {
+                    state.put(ticket.getId(), copy(ticket));
+                }
+            }
+        }
+
+        @Override
+        public void replace(@NotNull Collection<Ticket> tickets) throws TicketManagerException {
+            super.replace(tickets);
+            state = new LinkedHashMap<>();
+            for (Ticket ticket : tickets) {
+                state.put(ticket.getId(), ticket);
+            }
+        }
+    }
+}
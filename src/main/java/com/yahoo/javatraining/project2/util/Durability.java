@@ -0,0 +1,24 @@
+package com.yahoo.javatraining.project2.util;
+
+/**
+ * This enumeration represents how durable a Storage update is once the update method returns.
+ */
+public enum Durability {
+    /**
+     * Every update is forced to disk before the update returns. No acknowledged update is lost in a crash.
+     */
+    FSYNC,
+
+    /**
+     * Updates are collected and written together, forcing them to disk once per time window. An update is
+     * acknowledged before it is on disk, so a crash loses at most the updates of the last window. The file is
+     * always either the previous or the next consistent version.
+     */
+    GROUP_FSYNC,
+
+    /**
+     * Every update is written to the file but left to the operating system to flush. A process crash loses
+     * nothing, but a machine crash may lose recent updates.
+     */
+    OS_BUFFERED
+}
@@ -3,15 +3,28 @@ package com.yahoo.javatraining.project2.util;
 import com.yahoo.javatraining.project2.Ticket;
 import com.yahoo.javatraining.project2.TicketManagerException;
 import com.yahoo.javatraining.project2.TicketStatusCode;
+import com.yahoo.javatraining.project2.jfr.StorageWriteEvent;
 
 import javax.validation.constraints.NotNull;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This storage system keeps the persistent state in a file.
@@ -21,33 +34,133 @@ import java.util.Scanner;
  * 2. ticketId userId holdTransactionId - is a ticket that's currently being held by userId
  * 3. ticketId userId holdTransactionId * - is a ticket that's in the process of being purchased
  * 4. ticketId userId holdTransactionId buyTransactionId - is a purchased ticket
+ *
+ * An update rewrites the file into a temporary file which then atomically replaces the original file, so that
+ * the file is never seen half-written. When the new file is forced to disk depends on the Durability mode.
  */
 public class Storage {
     File file;
 
+    private final Durability durability;
+
+    private final long groupWindowMs;
+
+    // Updates not yet written to the file in GROUP_FSYNC mode, by ticket id.
+    private final Map<String, Ticket> pending = new LinkedHashMap<>();
+
+    // Time of the oldest pending update.
+    private long pendingSince;
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong syncs = new AtomicLong();
+
+    // Index kept up to date with the file, if opened.
+    private TicketIndex index;
+
     /**
-     * Manages the tickets in a file.
+     * Manages the tickets in a file. Updates are OS-buffered.
      *
      * @param file Non-null file of tickets. The format is described in the class docs.
      */
     public Storage(@NotNull File file) {
+        this(file, Durability.OS_BUFFERED, 0);
+    }
+
+    /**
+     * Manages the tickets in a file with the given durability.
+     *
+     * @param file          Non-null file of tickets. The format is described in the class docs.
+     * @param durability    When updates are forced to disk.
+     * @param groupWindowMs The maximum time an update waits to be written in GROUP_FSYNC mode.
+     */
+    public Storage(@NotNull File file, @NotNull Durability durability, long groupWindowMs) {
+        if (durability == Durability.GROUP_FSYNC && groupWindowMs <= 0) {
+            throw new IllegalArgumentException("groupWindowMs must be positive: " + groupWindowMs);
+        }
         this.file = file;
+        this.durability = durability;
+        this.groupWindowMs = groupWindowMs;
     }
 
     /**
-     * Returns the list of tickets currently stored in the file.
-     * This method is not thread-safe.
+     * Returns the durability of updates.
+     *
+     * @return A durability mode.
+     */
+    public @NotNull Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Returns the time window in which updates are grouped in GROUP_FSYNC mode.
+     *
+     * @return The window in milliseconds.
+     */
+    public long getGroupWindowMs() {
+        return groupWindowMs;
+    }
+
+    /**
+     * Returns the number of times the file has been rewritten. This method is thread-safe.
+     *
+     * @return A write count.
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * Returns the number of times the file has been forced to disk. This method is thread-safe.
+     *
+     * @return A sync count.
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * Opens the index of the file, building it if needed, and keeps it up to date with later updates.
+     * Pending updates are written first. This method is not thread-safe.
+     *
+     * @return The index of the file.
+     * @throws TicketManagerException If the index cannot be built.
+     */
+    public @NotNull TicketIndex openIndex() throws TicketManagerException {
+        if (index == null) {
+            flush();
+            index = TicketIndex.open(file);
+        }
+        return index;
+    }
+
+    /**
+     * Stops maintaining the index of the file and releases it. This method is not thread-safe.
+     */
+    public void closeIndex() {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+    }
+
+    /**
+     * Returns the list of tickets currently stored in the file. Pending updates are not included; call flush()
+     * first to include them. This method is not thread-safe.
      *
      * @return List of Ticket objects.
      * @throws TicketManagerException If the retrieval of the tickets did not succeed.
      */
     public @NotNull List<Ticket> getTickets() throws TicketManagerException {
         List<Ticket> results = new ArrayList<>();
-        try (Scanner sc = new Scanner(file)) {
-            while (sc.hasNext()) {
-                results.add(deserialize(sc.nextLine()));
+        try (BufferedReader rd = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = rd.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    results.add(deserialize(line));
+                }
             }
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             throw new TicketManagerException(e);
         }
         return results;
@@ -61,42 +174,221 @@ public class Storage {
      * @throws TicketManagerException If the update did not succeed.
      */
     public void update(@NotNull Ticket ticket) throws TicketManagerException {
-        File newFile = new File(file.toString() + ".new");
-        Scanner sc = null;
+        update(Collections.singletonList(ticket));
+    }
+
+    /**
+     * Updates the storage with the state of all the supplied Ticket objects, rewriting the file only once.
+     * If a ticket appears more than once, the last instance wins.
+     * This method is not thread-safe.
+     *
+     * @param tickets Ticket instances.
+     * @throws TicketManagerException If the update did not succeed.
+     */
+    public void update(@NotNull Collection<Ticket> tickets) throws TicketManagerException {
+        if (tickets.isEmpty()) {
+            return;
+        }
+        Map<String, Ticket> changes = pending;
+        if (durability != Durability.GROUP_FSYNC) {
+            changes = new LinkedHashMap<>();
+        } else if (pending.isEmpty()) {
+            pendingSince = System.currentTimeMillis();
+        }
+        for (Ticket ticket : tickets) {
+            changes.put(ticket.getId(), changes == pending ? copy(ticket) : ticket);
+        }
+
+        if (durability != Durability.GROUP_FSYNC) {
+            rewrite(changes, durability == Durability.FSYNC);
+        } else if (System.currentTimeMillis() - pendingSince >= groupWindowMs) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns true if updates are waiting for flush(). Only GROUP_FSYNC mode has pending updates.
+     * This method is not thread-safe.
+     *
+     * @return true if there are pending updates.
+     */
+    public boolean hasPendingUpdates() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Writes and forces all pending updates to disk. Only GROUP_FSYNC mode has pending updates; it relies on
+     * this method being called at least once per window when there are no further updates.
+     * This method is not thread-safe.
+     *
+     * @throws TicketManagerException If the write did not succeed.
+     */
+    public void flush() throws TicketManagerException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        rewrite(pending, true);
+        pending.clear();
+    }
+
+    /**
+     * Replaces the whole content of the file with the supplied tickets, discarding pending updates.
+     * The file is forced to disk unless the durability is OS_BUFFERED.
+     * This method is not thread-safe.
+     *
+     * @param tickets Ticket instances, in file order.
+     * @throws TicketManagerException If the write did not succeed.
+     */
+    public void replace(@NotNull Collection<Ticket> tickets) throws TicketManagerException {
+        pending.clear();
+        Path newPath = newPath();
+        boolean sync = durability != Durability.OS_BUFFERED;
         try {
-            sc = new Scanner(file);
-            FileWriter wr = new FileWriter(newFile);
-            try {
-                while (sc.hasNext()) {
-                    String line = sc.nextLine();
-                    String[] parts = line.split(" ");
-                    if (parts[0].equals(ticket.getId())) {
-                        wr.write(serialize(ticket));
-                    } else {
-                        wr.write(line);
-                    }
+            try (FileOutputStream out = new FileOutputStream(newPath.toFile())) {
+                BufferedWriter wr = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                for (Ticket ticket : tickets) {
+                    wr.write(serialize(ticket));
                     wr.write('\n');
                 }
-            } finally {
-                if (sc != null) {
-                    sc.close();
+                wr.flush();
+                if (sync) {
+                    out.getChannel().force(true);
+                }
+            }
+            if (index != null) {
+                index.invalidate();
+            }
+            install(newPath, sync);
+            if (index != null) {
+                index.rebuild();
+            }
+        } catch (IOException e) {
+            throw new TicketManagerException(e);
+        }
+    }
+
+    /**
+     * Rewrites the file with the changed tickets and atomically replaces the original file.
+     */
+    private void rewrite(Map<String, Ticket> changes, boolean sync) throws TicketManagerException {
+        Path newPath = newPath();
+        TicketIndex.Writer ix = index == null ? null : index.writer();
+        StorageWriteEvent event = new StorageWriteEvent();
+        event.begin();
+        try {
+            long offset = 0;
+            try (BufferedReader rd = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+                 FileOutputStream out = new FileOutputStream(newPath.toFile())) {
+                BufferedWriter wr = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                String line;
+                while ((line = rd.readLine()) != null) {
+                    int end = line.indexOf(' ');
+                    Ticket ticket = changes.get(end < 0 ? line : line.substring(0, end));
+                    if (ticket != null) {
+                        line = serialize(ticket);
+                    }
+                    wr.write(line);
+                    wr.write('\n');
+                    if (ix != null && !line.isEmpty()) {
+                        ix.add(offset, line, ticket != null);
+                    }
+                    offset += utf8Length(line) + 1;
                 }
-                if (wr != null) {
-                    wr.close();
-                    newFile.renameTo(file);
+                wr.flush();
+                if (sync) {
+                    out.getChannel().force(true);
                 }
             }
+            if (ix != null) {
+                ix.finish(offset);
+                index.invalidate();
+            }
+            install(newPath, sync);
+            if (ix != null) {
+                index.install(ix);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.tickets = changes.size();
+                event.bytes = offset;
+                event.forced = sync;
+                event.commit();
+            }
         } catch (IOException e) {
             throw new TicketManagerException(e);
         }
     }
 
+    private Path newPath() {
+        return new File(file.toString() + ".new").toPath();
+    }
+
+    /**
+     * Atomically replaces the file with a newly written one.
+     */
+    private void install(Path newPath, boolean sync) throws IOException {
+        Path path = file.toPath();
+        Files.move(newPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        writes.incrementAndGet();
+        if (sync) {
+            syncDirectory(path);
+            syncs.incrementAndGet();
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Forces the directory entry of the renamed file to disk. Not all platforms support this, in which case the
+     * rename is left to the file system.
+     */
+    private static void syncDirectory(Path path) {
+        Path dir = path.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened for syncing on this platform
+        }
+    }
+
+    /**
+     * Returns a copy of the state of a ticket, so that later changes to the ticket do not affect it.
+     * @param ticket A ticket instance.
+     * @return A new ticket instance with the same state.
+     */
+    public static @NotNull Ticket copy(@NotNull Ticket ticket) {
+        Ticket copy = new Ticket(ticket.getId());
+        copy.setStatus(ticket.getStatus());
+        copy.setUserId(ticket.getUserId());
+        copy.setHoldTransId(ticket.getHoldTransId());
+        copy.setBuyTransId(ticket.getBuyTransId());
+        copy.setHoldTime(ticket.getHoldTime());
+        copy.setBuyingTime(ticket.getBuyingTime());
+        return copy;
+    }
+
     /**
      * Returns a ticket object given the formatted line.
      * @param line A line from a ticket file.
      * @return A ticket instance.
      */
-    private @NotNull Ticket deserialize(@NotNull String line) {
+    public static @NotNull Ticket deserialize(@NotNull String line) {
         Ticket ticket = null;
         String[] parts = line.split(" ");
         if (parts.length == 0 || parts.length == 2 || parts.length > 5) {
@@ -126,7 +418,7 @@ public class Storage {
      * @param ticket A ticket instance.
      * @return A string representing the supplied ticket.
      */
-    private @NotNull String serialize(@NotNull Ticket ticket) {
+    public static @NotNull String serialize(@NotNull Ticket ticket) {
         switch (ticket.getStatus()) {
             case AVAILABLE:
                 return String.format("%s", ticket.getId());
@@ -0,0 +1,555 @@
+package com.yahoo.javatraining.project2.util;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManagerException;
+import com.yahoo.javatraining.project2.TicketStatusCode;
+
+import javax.validation.constraints.NotNull;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A compact index of a ticket file, used to read single tickets without loading the whole file.
+ * <p>
+ * The index maps each ticket id to its line number through an open-addressing hash table, and each line number to
+ * the byte offset and the status of the line. It is kept in the file {@code <ticket file>.idx}, which is
+ * memory-mapped, so the index takes no heap and only the pages in use become resident:
+ * <pre>
+ *   header (56) | line records: offset &lt;&lt; 8 | status (8 each) | hash table: hash &lt;&lt; 32 | line + 1 (8 each)
+ * </pre>
+ * Line numbers do not change when Storage rewrites the file, so only the records of the rewritten lines and the
+ * offsets of the lines after them change, and they are updated in place in the mapping. The header is marked stale
+ * before the ticket file is replaced and written again once the records are updated, so an index file whose header
+ * matches the length, the modification time and a sample checksum of the ticket file describes it; any other index
+ * is rebuilt with two passes over the ticket file. The checksum covers only the first and last blocks of the ticket
+ * file, so that opening a valid index takes the same time for any number of tickets; it detects the usual edits by
+ * other means, e.g. an appended or replaced ticket, even within the resolution of the modification time.
+ * This class is thread-safe.
+ */
+public class TicketIndex implements Closeable {
+    private static final int MAGIC = 0x54494458;
+    private static final int VERSION = 3;
+    private static final int HEADER = 56;
+    private static final int SAMPLE = 4096; //bytes at each end of the ticket file covered by the checksum
+    private static final TicketStatusCode[] STATUSES = TicketStatusCode.values();
+
+    private final File ticketFile;
+    private final File indexFile;
+    private final ReentrantLock lock = new ReentrantLock(); //guards the mapping and channel
+    private MappedByteBuffer map;
+    private FileChannel tickets; //the ticket file version the mapping describes
+    private int count;
+    private int tableSize;
+    private long fileLength;
+    private final int[] counts = new int[STATUSES.length];
+
+    private TicketIndex(File ticketFile) {
+        this.ticketFile = ticketFile;
+        this.indexFile = new File(ticketFile.toString() + ".idx");
+    }
+
+    /**
+     * Opens the index of a ticket file, building it if it is missing or does not match the file.
+     */
+    static TicketIndex open(@NotNull File ticketFile) throws TicketManagerException {
+        TicketIndex index = new TicketIndex(ticketFile);
+        try {
+            if (!index.load()) {
+                index.build();
+            }
+        } catch (IOException e) {
+            index.close();
+            throw new TicketManagerException(e);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of tickets in the file.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tickets in the file with the given status.
+     */
+    public int count(@NotNull TicketStatusCode status) {
+        lock.lock();
+        try {
+            return counts[status.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the line number of a ticket.
+     *
+     * @param ticketId A ticket id.
+     * @return A line number, or -1 if the ticket is not in the file.
+     * @throws TicketManagerException If the ticket file cannot be read.
+     */
+    public int find(@NotNull String ticketId) throws TicketManagerException {
+        int hash = ticketId.hashCode();
+        lock.lock();
+        try {
+            int mask = tableSize - 1;
+            long table = HEADER + 8L * count;
+            for (int i = mix(hash) & mask; ; i = (i + 1) & mask) {
+                long entry = map.getLong((int) (table + 8L * i));
+                if (entry == 0) {
+                    return -1;
+                }
+                int line = (int) entry - 1;
+                if ((int) (entry >>> 32) == hash && ticketId.equals(id(readLine(line)))) {
+                    return line;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the status of the ticket on a line, as stored in the file.
+     */
+    public @NotNull TicketStatusCode status(int line) {
+        lock.lock();
+        try {
+            return STATUSES[(int) (record(line) & 0xff)];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the ticket on a line.
+     *
+     * @param line A line number.
+     * @return A new ticket instance.
+     * @throws TicketManagerException If the ticket file cannot be read.
+     */
+    public @NotNull Ticket read(int line) throws TicketManagerException {
+        lock.lock();
+        try {
+            return Storage.deserialize(readLine(line));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (tickets != null) {
+                tickets.close();
+                tickets = null;
+            }
+            map = null;
+        } catch (IOException e) {
+            // Ignore
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts collecting the line records of a rewritten ticket file with the same lines. Called by Storage with the
+     * lines of the new file, in order.
+     */
+    Writer writer() {
+        return new Writer();
+    }
+
+    /**
+     * Marks the index file stale before the ticket file is replaced. The mapping stays valid until install().
+     */
+    void invalidate() {
+        lock.lock();
+        try {
+            map.putInt(4, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to the replaced ticket file, updating the line records and the header in place.
+     */
+    void install(Writer writer) throws IOException {
+        FileChannel channel = FileChannel.open(ticketFile.toPath(), StandardOpenOption.READ);
+        lock.lock();
+        try {
+            if (writer.lines != count) {
+                throw new IOException("Rewritten ticket file has " + writer.lines + " tickets instead of " + count);
+            }
+            FileChannel replaced = tickets;
+            tickets = channel;
+            channel = replaced; //closed outside the lock, since closing the replaced file can take a while
+            long shift = 0; //of the offsets after the last rewritten line
+            int next = 0; //the next rewritten line
+            for (int line = writer.changes == 0 ? count : writer.changedLines[0]; line < count; line++) {
+                long old = map.getLong(HEADER + 8 * line);
+                if (next < writer.changes && writer.changedLines[next] == line) {
+                    long record = writer.changedRecords[next];
+                    counts[(int) (old & 0xff)]--;
+                    counts[(int) (record & 0xff)]++;
+                    map.putLong(HEADER + 8 * line, record);
+                    if (line + 1 < count) {
+                        shift = writer.nextOffsets[next] - (map.getLong(HEADER + 8 * (line + 1)) >>> 8);
+                    }
+                    next++;
+                } else if (shift != 0) {
+                    map.putLong(HEADER + 8 * line, old + (shift << 8));
+                } else if (next == writer.changes) {
+                    break;
+                }
+            }
+            fileLength = writer.length;
+            writeHeader(map, count, tableSize, writer.length, stamp(tickets, writer.length), counts);
+        } finally {
+            lock.unlock();
+            channel.close();
+        }
+    }
+
+    /**
+     * Rebuilds the index after the set of tickets in the file has changed.
+     */
+    void rebuild() throws IOException {
+        invalidate();
+        lock.lock();
+        try {
+            build();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Maps the index file and opens the ticket file it describes.
+     *
+     * @return false if the index file is missing or does not match the ticket file.
+     */
+    private boolean load() throws IOException {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        FileChannel channel = FileChannel.open(ticketFile.toPath(), StandardOpenOption.READ);
+        MappedByteBuffer mapped;
+        try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            mapped = index.map(FileChannel.MapMode.READ_WRITE, 0, index.size());
+        }
+        if (mapped.capacity() < HEADER || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION
+                || mapped.getLong(16) != channel.size()
+                || mapped.capacity() != HEADER + 8L * mapped.getInt(8) + 8L * mapped.getInt(12)
+                || mapped.getLong(40) != sample(channel, channel.size())
+                || mapped.getLong(48) != modified(ticketFile)) {
+            channel.close();
+            return false;
+        }
+        if (tickets != null) {
+            tickets.close();
+        }
+        tickets = channel;
+        map = mapped;
+        count = map.getInt(8);
+        tableSize = map.getInt(12);
+        fileLength = map.getLong(16);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = map.getInt(24 + 4 * i);
+        }
+        return true;
+    }
+
+    /**
+     * Builds the index file from the ticket file and loads it.
+     */
+    private void build() throws IOException {
+        Path path = new File(indexFile.toString() + ".new").toPath();
+        int[] statusCounts = new int[STATUSES.length];
+        int lines = 0;
+        long length;
+        long modified = modified(ticketFile); //before reading, so that a change while building is detected
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Pass 1: line records
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            out.position(HEADER);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(ticketFile.toPath()))) {
+                LineReader rd = new LineReader(in);
+                String line;
+                while ((line = rd.next()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    TicketStatusCode status = statusOf(line);
+                    statusCounts[status.ordinal()]++;
+                    lines++;
+                    if (!buf.hasRemaining()) {
+                        buf.flip();
+                        writeFully(out, buf);
+                        buf.clear();
+                    }
+                    buf.putLong(rd.offset << 8 | status.ordinal());
+                }
+                length = rd.position;
+            }
+            buf.flip();
+            writeFully(out, buf);
+
+            // Pass 2: hash table, built in the mapped file
+            int size = tableSizeFor(lines);
+            long table = HEADER + 8L * lines;
+            if (table + 8L * size > Integer.MAX_VALUE) {
+                throw new IOException("Too many tickets to index: " + lines);
+            }
+            MappedByteBuffer mapped = out.map(FileChannel.MapMode.READ_WRITE, 0, table + 8L * size);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(ticketFile.toPath()))) {
+                LineReader rd = new LineReader(in);
+                String line;
+                int n = 0;
+                while ((line = rd.next()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    int hash = id(line).hashCode();
+                    int i = mix(hash) & (size - 1);
+                    while (mapped.getLong((int) (table + 8L * i)) != 0) {
+                        i = (i + 1) & (size - 1);
+                    }
+                    mapped.putLong((int) (table + 8L * i), (long) hash << 32 | (n + 1) & 0xffffffffL);
+                    n++;
+                }
+            }
+            try (FileChannel in = FileChannel.open(ticketFile.toPath(), StandardOpenOption.READ)) {
+                writeHeader(mapped, lines, size, length, sample(in, length), statusCounts);
+            }
+            mapped.putLong(48, modified);
+            mapped.force();
+        }
+        Files.move(path, indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (!load()) {
+            throw new IOException("Ticket file changed while building the index: " + ticketFile);
+        }
+    }
+
+    private long record(int line) {
+        if (line < 0 || line >= count) {
+            throw new IndexOutOfBoundsException("Line " + line + " of " + count);
+        }
+        return map.getLong(HEADER + 8 * line);
+    }
+
+    /**
+     * Reads a line of the ticket file, without the line terminator.
+     */
+    private String readLine(int line) throws TicketManagerException {
+        long offset = record(line) >>> 8;
+        long end = line + 1 < count ? record(line + 1) >>> 8 : fileLength;
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - offset));
+        try {
+            while (buf.hasRemaining()) {
+                if (tickets.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new TicketManagerException(e);
+        }
+        int length = 0;
+        while (length < buf.position() && buf.get(length) != '\n') {
+            length++;
+        }
+        return new String(buf.array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void writeHeader(ByteBuffer buf, int lines, int size, long length, long sample,
+                                    int[] statusCounts) {
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(8, lines);
+        buf.putInt(12, size);
+        buf.putLong(16, length);
+        for (int i = 0; i < statusCounts.length; i++) {
+            buf.putInt(24 + 4 * i, statusCounts[i]);
+        }
+        buf.putLong(40, sample);
+    }
+
+    /**
+     * Returns the sample checksum of the installed ticket file and writes its modification time to the header.
+     * Must be called with the lock held.
+     */
+    private long stamp(FileChannel channel, long length) throws IOException {
+        map.putLong(48, modified(ticketFile));
+        return sample(channel, length);
+    }
+
+    /**
+     * Returns the CRC-32 checksum of the first and last SAMPLE bytes of a file, which take the same time to read for
+     * any file size.
+     */
+    private static long sample(FileChannel channel, long length) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(length, SAMPLE));
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(length - head.capacity(), SAMPLE));
+        readFully(channel, head, 0);
+        readFully(channel, tail, length - tail.capacity());
+        CRC32 crc = new CRC32();
+        crc.update(head.flip());
+        crc.update(tail.flip());
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining() && channel.read(buf, position + buf.position()) >= 0) {
+            // read the rest
+        }
+    }
+
+    private static long modified(File file) throws IOException {
+        return Files.getLastModifiedTime(file.toPath()).toMillis();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static int tableSizeFor(int lines) {
+        int size = 16;
+        while (size < 2L * lines) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static String id(String line) {
+        int end = line.indexOf(' ');
+        return end < 0 ? line : line.substring(0, end);
+    }
+
+    /**
+     * Derives the status of a ticket from its line without parsing it. See Storage for the line formats.
+     */
+    static TicketStatusCode statusOf(String line) {
+        int spaces = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == ' ') {
+                spaces++;
+            }
+        }
+        if (spaces == 0) {
+            return TicketStatusCode.AVAILABLE;
+        } else if (spaces == 2) {
+            return TicketStatusCode.HELD;
+        }
+        return line.endsWith(" *") ? TicketStatusCode.BUYING : TicketStatusCode.BOUGHT;
+    }
+
+    /**
+     * Reads lines of UTF-8 text and tracks their byte offsets.
+     */
+    private static class LineReader {
+        final InputStream in;
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long offset; //of the last line returned
+        long position;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        String next() throws IOException {
+            line.reset();
+            offset = position;
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b == '\n') {
+                    return line.toString("UTF-8");
+                }
+                line.write(b);
+            }
+            return line.size() > 0 ? line.toString("UTF-8") : null;
+        }
+    }
+
+    /**
+     * Collects the records of the rewritten lines of a ticket file. The hash table is kept, since the lines have not
+     * moved, and the other records are derived from the current ones when the writer is installed.
+     */
+    class Writer {
+        private int[] changedLines = new int[8];
+        private long[] changedRecords = new long[8];
+        private long[] nextOffsets = new long[8]; //new offset of the line after each rewritten line
+        private int changes;
+        private int lines;
+        private long length;
+
+        private Writer() {
+        }
+
+        /**
+         * Adds the next non-empty line of the new ticket file.
+         *
+         * @param offset    The offset of the line in the new file.
+         * @param line      The line.
+         * @param rewritten True if the line may differ from the line in the current file.
+         */
+        void add(long offset, String line, boolean rewritten) {
+            if (changes > 0 && changedLines[changes - 1] == lines - 1) {
+                nextOffsets[changes - 1] = offset;
+            }
+            if (rewritten) {
+                if (changes == changedLines.length) {
+                    changedLines = Arrays.copyOf(changedLines, 2 * changes);
+                    changedRecords = Arrays.copyOf(changedRecords, 2 * changes);
+                    nextOffsets = Arrays.copyOf(nextOffsets, 2 * changes);
+                }
+                changedLines[changes] = lines;
+                changedRecords[changes] = offset << 8 | statusOf(line).ordinal();
+                changes++;
+            }
+            lines++;
+        }
+
+        /**
+         * Completes the records.
+         *
+         * @param length The length of the new ticket file.
+         */
+        void finish(long length) {
+            this.length = length;
+        }
+    }
+}
@@ -112,7 +112,7 @@ class User implements Runnable {
                 switch (rand(2)) {
                     case 0:
                         // Hold and cancel
-                        String txId = tmgr.hold(userId, ticket.getId());
+                        String txId = tmgr.holdWhenAvailable(userId, ticket.getId(), rand(50));
                         Thread.sleep(rand(50)); // possibly expire
 
                         tmgr.cancel(userId, ticket.getId(), txId);
@@ -120,7 +120,7 @@ class User implements Runnable {
                         break;
                     case 1:
                         // Buy
-                        txId = tmgr.hold(userId, ticket.getId());
+                        txId = tmgr.holdWhenAvailable(userId, ticket.getId(), rand(50));
                         Thread.sleep(rand(50)); // possibly expire
 
                         tmgr.buy(userId, ticket.getId(), txId);
@@ -130,7 +130,8 @@ class User implements Runnable {
                 }
             } catch (TicketManagerException e) {
                 if (e.getMessage() == null
-                        || !e.getMessage().matches(".*(is|being held|is being or has been purchased|first be held|no longer available|already held).*")) {
+                        || !e.getMessage().matches(".*(is|being held|is being or has been purchased|first be held|no longer available|already held"
+                        + "|hold expires|pipeline is full|too many purchases|unavailable).*")) {
                     e.printStackTrace();
                 } else {
                     System.out.printf("%s %s. %d tickets left\n",
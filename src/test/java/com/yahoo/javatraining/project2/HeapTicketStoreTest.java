@@ -0,0 +1,49 @@
+package com.yahoo.javatraining.project2;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ */
+public class HeapTicketStoreTest {
+
+    @Test
+    public void growsBeyondExpectedSize() {
+        HeapTicketStore store = new HeapTicketStore(1);
+        for (int i = 0; i < 1000; i++) {
+            store.put(new Ticket(String.valueOf(i)));
+        }
+        Ticket ticket = store.get("42");
+        ticket.setStatus(TicketStatusCode.HELD);
+        store.put(ticket);
+        Assert.assertSame(store.get("42"), ticket);
+        Assert.assertNull(store.get("1000"));
+        Assert.assertEquals(store.size(), 1000);
+        Assert.assertEquals(store.tickets().size(), 1000);
+        Assert.assertEquals(store.tickets().get(999).getId(), "999");
+    }
+
+    @Test
+    public void nextAvailable() {
+        HeapTicketStore store = new HeapTicketStore(3);
+        for (int i = 0; i < 3; i++) {
+            store.put(new Ticket(String.valueOf(i)));
+        }
+        Ticket held = store.get("1");
+        held.setStatus(TicketStatusCode.HELD);
+        store.put(held);
+        Assert.assertEquals(store.nextAvailable(), "0");
+        Assert.assertEquals(store.nextAvailable(), "2");
+        Assert.assertEquals(store.nextAvailable(), "0");
+
+        held.setStatus(TicketStatusCode.AVAILABLE);
+        store.put(held);
+        Assert.assertEquals(store.nextAvailable(), "1");
+        for (int i = 0; i < 3; i++) {
+            Ticket ticket = store.get(String.valueOf(i));
+            ticket.setStatus(TicketStatusCode.BOUGHT);
+            store.put(ticket);
+        }
+        Assert.assertNull(store.nextAvailable());
+    }
+}
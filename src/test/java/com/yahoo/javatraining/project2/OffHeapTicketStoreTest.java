@@ -0,0 +1,80 @@
+package com.yahoo.javatraining.project2;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+
+/**
+ */
+public class OffHeapTicketStoreTest {
+
+    @Test
+    public void roundTrip() {
+        OffHeapTicketStore store = new OffHeapTicketStore(1000);
+        for (int i = 0; i < 1000; i++) {
+            store.put(new Ticket(String.valueOf(i)));
+        }
+        String holdTransId = UUID.randomUUID().toString();
+        Ticket ticket = store.get("42");
+        ticket.setStatus(TicketStatusCode.BOUGHT);
+        ticket.setUserId("user");
+        ticket.setHoldTransId(holdTransId);
+        ticket.setHoldTime(1234);
+        ticket.setBuyingTime(5678);
+        ticket.setBuyTransId("42-X");
+        store.put(ticket);
+
+        Ticket copy = store.get("42");
+        Assert.assertNotSame(copy, ticket);
+        Assert.assertEquals(copy.getStatus(), TicketStatusCode.BOUGHT);
+        Assert.assertEquals(copy.getUserId(), "user");
+        Assert.assertEquals(copy.getHoldTransId(), holdTransId);
+        Assert.assertEquals(copy.getHoldTime(), 1234);
+        Assert.assertEquals(copy.getBuyingTime(), 5678);
+        Assert.assertEquals(copy.getBuyTransId(), "42-X");
+        Assert.assertEquals(store.get("41").getStatus(), TicketStatusCode.AVAILABLE);
+        Assert.assertNull(store.get("41").getHoldTransId());
+        Assert.assertNull(store.get("1000"));
+        Assert.assertEquals(store.size(), 1000);
+        Assert.assertEquals(store.tickets().size(), 1000);
+    }
+
+    @Test
+    public void nextAvailable() {
+        OffHeapTicketStore store = new OffHeapTicketStore(3);
+        for (int i = 0; i < 3; i++) {
+            store.put(new Ticket(String.valueOf(i)));
+        }
+        Ticket held = store.get("1");
+        held.setStatus(TicketStatusCode.HELD);
+        store.put(held);
+        Assert.assertEquals(store.nextAvailable(), "0");
+        Assert.assertEquals(store.nextAvailable(), "2");
+        Assert.assertEquals(store.nextAvailable(), "0");
+
+        for (int i = 0; i < 3; i += 2) {
+            Ticket ticket = store.get(String.valueOf(i));
+            ticket.setStatus(TicketStatusCode.BOUGHT);
+            store.put(ticket);
+        }
+        Assert.assertNull(store.nextAvailable());
+    }
+
+    @Test
+    public void nonUuidTransactionId() {
+        OffHeapTicketStore store = new OffHeapTicketStore(1);
+        Ticket ticket = new Ticket("1");
+        ticket.setStatus(TicketStatusCode.HELD);
+        ticket.setUserId("user");
+        ticket.setHoldTransId("F47AC10B-58CC-4372-A567-0E02B2C3D479");
+        store.put(ticket);
+        Assert.assertEquals(store.get("1").getHoldTransId(), "F47AC10B-58CC-4372-A567-0E02B2C3D479");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void idTooLong() {
+        OffHeapTicketStore store = new OffHeapTicketStore(1);
+        store.put(new Ticket(new String(new char[OffHeapTicketStore.MAX_ID_BYTES + 1]).replace('\0', 'x')));
+    }
+}
@@ -0,0 +1,57 @@
+package com.yahoo.javatraining.project2;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ */
+public class PurchaseLanesTest {
+
+    @Test
+    public void weightedShares() throws Exception {
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setLaneWeight(PurchaseLane.LIVE, 3);
+        options.setLaneWeight(PurchaseLane.RECOVERY, 1);
+        TicketManagerMetrics metrics = new TicketManagerMetrics();
+        PurchaseLanes<String> lanes = new PurchaseLanes<>(options, metrics);
+        for (int i = 0; i < 10; i++) {
+            lanes.add(PurchaseLane.RECOVERY, "r" + i);
+        }
+        for (int i = 0; i < 6; i++) {
+            lanes.add(PurchaseLane.LIVE, "l" + i);
+        }
+        Assert.assertEquals(metrics.getLaneQueued(PurchaseLane.RECOVERY), 10);
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            order.append(lanes.next().charAt(0));
+        }
+        Assert.assertEquals(order.toString(), "llrlllrl");
+
+        // An idle lane leaves its share to the others
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals(lanes.next(), "r" + (i + 2));
+        }
+        Assert.assertNull(lanes.next());
+        Assert.assertEquals(metrics.getLaneDispatched(PurchaseLane.LIVE), 6);
+        Assert.assertEquals(metrics.getLaneQueued(PurchaseLane.RECOVERY), 0);
+    }
+
+    @Test
+    public void overdueCallsServedFirst() throws Exception {
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setMaxLaneWaitMs(50);
+        TicketManagerMetrics metrics = new TicketManagerMetrics();
+        PurchaseLanes<String> lanes = new PurchaseLanes<>(options, metrics);
+        lanes.add(PurchaseLane.RECOVERY, "r0");
+        lanes.add(PurchaseLane.RETRY, "t0");
+        Thread.sleep(100);
+        lanes.add(PurchaseLane.LIVE, "l0");
+
+        Assert.assertEquals(lanes.next(), "r0");
+        Assert.assertEquals(lanes.next(), "t0");
+        Assert.assertEquals(lanes.next(), "l0");
+        Assert.assertEquals(metrics.getLaneOverdue(PurchaseLane.RECOVERY), 1);
+        Assert.assertEquals(metrics.getLaneOverdue(PurchaseLane.LIVE), 0);
+    }
+}
@@ -0,0 +1,199 @@
+package com.yahoo.javatraining.project2;
+
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.Storage;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ */
+public class StorageWriterTest {
+    File file;
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        file = File.createTempFile("tickets", "");
+        try (FileWriter wr = new FileWriter(file)) {
+            for (int i = 0; i < 100; i++) {
+                wr.write(i + "\n");
+            }
+        }
+    }
+
+    @AfterMethod
+    public void afterMethod() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void mergesQueuedUpdates() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Storage storage = new Storage(file) {
+            @Override
+            public void update(Collection<Ticket> tickets) throws TicketManagerException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new TicketManagerException(e);
+                }
+                super.update(tickets);
+            }
+        };
+        TicketManagerMetrics metrics = new TicketManagerMetrics();
+        List<String> written = new ArrayList<>();
+        StorageWriter writer = new StorageWriter(storage, 4, metrics, written::add);
+        metrics.storageWriter(writer);
+
+        CompletableFuture<Void> first = writer.submit(held("0", "user0"));
+        writing.await();
+        Ticket ticket = held("1", "user1");
+        List<CompletableFuture<Void>> queued = new ArrayList<>();
+        queued.add(writer.submit(ticket));
+        queued.add(writer.submit(ticket));
+        queued.add(writer.submit(held("2", "user2")));
+        ticket.setUserId("user3");
+        queued.add(writer.submit(ticket));
+        Assert.assertEquals(metrics.getStorageQueued(), 4);
+        Assert.assertFalse(first.isDone());
+
+        release.countDown();
+        for (CompletableFuture<Void> update : queued) {
+            update.join();
+        }
+        Assert.assertTrue(first.isDone());
+        Assert.assertEquals(lines().get(1), "1 user3 tx");
+        Assert.assertEquals(lines().get(2), "2 user2 tx");
+        Assert.assertEquals(storage.getWriteCount(), 2);
+        Assert.assertEquals(metrics.getStorageBatches(), 2);
+        Assert.assertEquals(metrics.getStorageUpdatesMerged(), 2);
+        Assert.assertEquals(written.size(), 5);
+        writer.close().join();
+    }
+
+    @Test
+    public void concurrentUpdates() throws Exception {
+        Storage storage = new Storage(file);
+        TicketManagerMetrics metrics = new TicketManagerMetrics();
+        StorageWriter writer = new StorageWriter(storage, 8, metrics, null);
+        metrics.storageWriter(writer);
+        ExecutorService pool = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 10; t++) {
+                int first = t * 10;
+                tasks.add(pool.submit(() -> {
+                    for (int i = first; i < first + 10; i++) {
+                        writer.submit(held(Integer.toString(i), "user" + first)).join();
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            pool.shutdown();
+            writer.close();
+        }
+        List<String> lines = lines();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(lines.get(i), i + " user" + (i / 10 * 10) + " tx");
+        }
+        Assert.assertTrue(metrics.getStorageBatches() <= 100);
+        Assert.assertEquals(metrics.getStorageQueued(), 0);
+    }
+
+    @Test
+    public void groupedUpdatesCompleteWhenFlushed() throws Exception {
+        Storage storage = new Storage(file, Durability.GROUP_FSYNC, 60000);
+        TicketManagerMetrics metrics = new TicketManagerMetrics();
+        List<String> written = new ArrayList<>();
+        StorageWriter writer = new StorageWriter(storage, 4, metrics, written::add);
+        CompletableFuture<Void> update = writer.submit(held("1", "user1"));
+        while (metrics.getStorageBatches() == 0) {
+            Thread.sleep(1);
+        }
+        Assert.assertFalse(update.isDone());
+        Assert.assertEquals(lines().get(1), "1");
+
+        writer.flush().join();
+        Assert.assertTrue(update.isDone());
+        Assert.assertEquals(lines().get(1), "1 user1 tx");
+        Assert.assertEquals(storage.getSyncCount(), 1);
+        Assert.assertEquals(written.size(), 1);
+        writer.close().join();
+    }
+
+    @Test
+    public void closedWriterRejectsUpdates() throws Exception {
+        StorageWriter writer = new StorageWriter(new Storage(file), 4, new TicketManagerMetrics(), null);
+        writer.submit(held("1", "user1"));
+        writer.close().join();
+        Assert.assertEquals(lines().get(1), "1 user1 tx");
+        try {
+            writer.submit(held("2", "user2")).join();
+            Assert.fail("expected exception");
+        } catch (Exception e) {
+            Assert.assertTrue(e.getCause() instanceof TicketManagerException);
+        }
+    }
+
+    @Test
+    public void closeCompletesRacingUpdates() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            StorageWriter writer = new StorageWriter(new Storage(file), 4, new TicketManagerMetrics(), null);
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            CountDownLatch started = new CountDownLatch(4);
+            List<Future<List<CompletableFuture<Void>>>> tasks = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                String id = Integer.toString(t);
+                tasks.add(pool.submit(() -> {
+                    List<CompletableFuture<Void>> updates = new ArrayList<>();
+                    started.countDown();
+                    CompletableFuture<Void> update;
+                    do {
+                        update = writer.submit(held(id, "user" + id));
+                        updates.add(update);
+                    } while (!update.isCompletedExceptionally());
+                    return updates;
+                }));
+            }
+            started.await();
+            writer.close().join();
+            for (Future<List<CompletableFuture<Void>>> task : tasks) {
+                for (CompletableFuture<Void> update : task.get(10, TimeUnit.SECONDS)) {
+                    Assert.assertTrue(update.isDone(), "update left pending after close");
+                }
+            }
+            pool.shutdown();
+        }
+    }
+
+    private Ticket held(String id, String userId) {
+        Ticket ticket = new Ticket(id);
+        ticket.setStatus(TicketStatusCode.HELD);
+        ticket.setUserId(userId);
+        ticket.setHoldTransId("tx");
+        return ticket;
+    }
+
+    private List<String> lines() throws Exception {
+        return Files.readAllLines(file.toPath());
+    }
+}
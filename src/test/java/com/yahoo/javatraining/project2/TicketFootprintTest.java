@@ -0,0 +1,94 @@
+package com.yahoo.javatraining.project2;
+
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+import org.openjdk.jol.vm.VirtualMachine;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+
+/**
+ * Tracks the memory used per ticket. Larger inventories are measured with, for example,
+ * -Dfootprint.tickets=100000,1000000,10000000 (10M tickets need a heap of about 3 GB).
+ */
+public class TicketFootprintTest {
+    // Heap bytes per held ticket, including its id and a share of the array holding it.
+    private static final long MAX_BYTES_PER_TICKET = 112;
+
+    @Test
+    public void packedState() throws Exception {
+        long now = System.currentTimeMillis();
+        String txId = UUID.randomUUID().toString();
+        Ticket ticket = new Ticket("1");
+        Assert.assertEquals(ticket.getStatus(), TicketStatusCode.AVAILABLE);
+        Assert.assertEquals(ticket.getHoldTime(), 0);
+
+        ticket.setStatus(TicketStatusCode.BUYING);
+        ticket.setUserId(new String("user"));
+        ticket.setHoldTransId(txId);
+        ticket.setHoldTime(now);
+        ticket.setBuyingTime(Long.MAX_VALUE);
+        Assert.assertEquals(ticket.getStatus(), TicketStatusCode.BUYING);
+        Assert.assertEquals(ticket.getHoldTransId(), txId);
+        Assert.assertEquals(ticket.getHoldTime(), now);
+        Assert.assertEquals(ticket.getBuyingTime(), Long.MAX_VALUE);
+        Assert.assertTrue(ticket.holdTransIdEquals(txId));
+        Assert.assertFalse(ticket.holdTransIdEquals(txId.toUpperCase()));
+        Assert.assertFalse(ticket.holdTransIdEquals(UUID.randomUUID().toString()));
+        Assert.assertFalse(ticket.holdTransIdEquals(txId.substring(0, 35) + "g"));
+        Assert.assertFalse(ticket.holdTransIdEquals(null));
+
+        // Values that are not packed are kept exactly
+        ticket.setHoldTransId(txId.toUpperCase());
+        ticket.setHoldTime(1);
+        Assert.assertEquals(ticket.getHoldTransId(), txId.toUpperCase());
+        Assert.assertTrue(ticket.holdTransIdEquals(txId.toUpperCase()));
+        Assert.assertFalse(ticket.holdTransIdEquals(txId));
+        Assert.assertEquals(ticket.getHoldTime(), 1);
+        ticket.setHoldTransId(null);
+        ticket.setBuyingTime(0);
+        Assert.assertNull(ticket.getHoldTransId());
+        Assert.assertTrue(ticket.holdTransIdEquals(null));
+        Assert.assertFalse(ticket.holdTransIdEquals(txId));
+        Assert.assertEquals(ticket.getBuyingTime(), 0);
+
+        Ticket other = new Ticket("2");
+        other.setUserId(new String("user"));
+        Assert.assertSame(other.getUserId(), ticket.getUserId());
+    }
+
+    @Test
+    public void footprint() throws Exception {
+        VirtualMachine vm = VM.current();
+        if (vm.arrayIndexScale(Object[].class.getName()) != 4 || vm.objectHeaderSize() != 12
+                || vm.objectAlignment() != 8) {
+            throw new SkipException("The limit assumes compressed references, 12-byte headers and 8-byte alignment: "
+                    + vm.details());
+        }
+        long instanceSize = ClassLayout.parseClass(Ticket.class).instanceSize();
+        for (String size : System.getProperty("footprint.tickets", "100000").split(",")) {
+            int count = Integer.parseInt(size.trim());
+            Ticket[] tickets = heldTickets(count);
+            long bytes = GraphLayout.parseInstance((Object) tickets).totalSize();
+            Assert.assertTrue(bytes / count <= MAX_BYTES_PER_TICKET, count + " held tickets: " + bytes / count
+                    + " bytes per ticket, of which " + instanceSize + " for the Ticket instance");
+        }
+    }
+
+    private static Ticket[] heldTickets(int count) {
+        long now = System.currentTimeMillis();
+        Ticket[] tickets = new Ticket[count];
+        for (int i = 0; i < count; i++) {
+            Ticket ticket = new Ticket(Integer.toString(i));
+            ticket.setStatus(TicketStatusCode.HELD);
+            ticket.setUserId("user" + i % 1000);
+            ticket.setHoldTransId(UUID.randomUUID().toString());
+            ticket.setHoldTime(now);
+            tickets[i] = ticket;
+        }
+        return tickets;
+    }
+}
@@ -1,5 +1,6 @@
 package com.yahoo.javatraining.project2;
 
+import com.yahoo.javatraining.project2.util.Durability;
 import com.yahoo.javatraining.project2.util.Storage;
 import com.yahoo.javatraining.project2.util.WebService;
 import org.testng.Assert;
@@ -9,9 +10,26 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  */
@@ -122,6 +140,643 @@ public class TicketManagerTest {
         Assert.assertEquals(getLine(4), "4");
     }
 
+    @Test
+    public void groupedExpiry() throws Exception {
+        tmgr.shutdown();
+        tmgr = new TicketManager(100, new Storage(file, Durability.GROUP_FSYNC, 50), new WebService());
+        String txId = tmgr.hold("user", "1"); //returns once the group is flushed
+        Assert.assertEquals(getLine(1), "1 user " + txId);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!getLine(1).equals("1") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(getLine(1), "1");
+        Assert.assertEquals(tmgr.metrics().getHoldsExpired(), 1);
+    }
+
+    @Test
+    public void offHeapStore() throws Exception {
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setOffHeapStore(true);
+        restart(options, new WebService());
+
+        String txId = tmgr.hold("user", "3");
+        Assert.assertEquals(getLine(3), "3 user " + txId);
+        Assert.assertEquals(tmgr.hold("user", "3"), txId);
+        tmgr.cancel("user", "3", txId);
+        Assert.assertEquals(getLine(3), "3");
+
+        txId = tmgr.hold("user", "5");
+        String buyTxId = tmgr.buy("user", "5", txId);
+        Assert.assertEquals(getLine(5), "5 user " + txId + " " + buyTxId);
+        Assert.assertEquals(tmgr.availableCount(), 9);
+    }
+
+    @Test
+    public void lazyLoad() throws Exception {
+        new File(file + ".idx").delete();
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setLazyLoad(true);
+        restart(options, new WebService());
+        Assert.assertEquals(tmgr.metrics().getTicketsLoaded(), 0);
+
+        String txId = tmgr.hold("user", "3");
+        Assert.assertEquals(getLine(3), "3 user " + txId);
+        Assert.assertEquals(tmgr.hold("user", "3"), txId);
+        tmgr.cancel("user", "3", txId);
+        Assert.assertEquals(getLine(3), "3");
+
+        txId = tmgr.hold("user", "5");
+        String buyTxId = tmgr.buy("user", "5", txId);
+        Assert.assertEquals(getLine(5), "5 user " + txId + " " + buyTxId);
+        Assert.assertEquals(tmgr.availableCount(), 9);
+
+        Ticket any = tmgr.holdAny("user");
+        Assert.assertEquals(getLine(Integer.parseInt(any.getId())), any.getId() + " user " + any.getHoldTransId());
+        try {
+            tmgr.hold("user", "10");
+            Assert.fail("expected exception");
+        } catch (TicketManagerException e) {
+        }
+        // Only the held and bought tickets stay in memory
+        Assert.assertTrue(tmgr.metrics().getTicketsLoaded() <= 3);
+    }
+
+    @Test
+    public void lazyLoadResumesTickets() throws Exception {
+        tmgr.shutdown();
+        new File(file + ".idx").delete();
+        try (FileWriter wr = new FileWriter(file)) {
+            wr.write("0\n1 user tx1 *\n2 user tx2\n3\n");
+        }
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setLazyLoad(true);
+        tmgr = new TicketManager(10000, new Storage(file), new WebService(), options);
+
+        Assert.assertEquals(tmgr.availableCount(), 3);
+        Assert.assertEquals(tmgr.buy("user", "2", "tx2"), "2-X");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!getLine(1).equals("1 user tx1 1-X")) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(ticketIds(tmgr.ticketsOf("user")), new HashSet<>(Arrays.asList("1", "2")));
+    }
+
+    @Test
+    public void ticketsOfUser() throws Exception {
+        restart(new TicketManagerOptions(), new WebService());
+        String txId1 = tmgr.hold("user", "1");
+        String txId2 = tmgr.hold("user", "2");
+        String txId3 = tmgr.hold("user", "3");
+        tmgr.hold("other", "4");
+        tmgr.buy("user", "2", txId2);
+        tmgr.cancel("user", "3", txId3);
+
+        List<Ticket> owned = tmgr.ticketsOf("user");
+        Assert.assertEquals(owned.size(), 2);
+        Assert.assertEquals(owned.get(0).getId(), "1");
+        Assert.assertEquals(owned.get(0).getHoldTransId(), txId1);
+        Assert.assertEquals(owned.get(1).getId(), "2");
+        Assert.assertEquals(owned.get(1).getStatus(), TicketStatusCode.BOUGHT);
+        Assert.assertEquals(tmgr.holdCount("user"), 1);
+        Assert.assertTrue(tmgr.ticketsOf("nobody").isEmpty());
+
+        tmgr.cancel("user", "1", txId1);
+        Assert.assertEquals(ticketIds(tmgr.ticketsOf("user")), Collections.singleton("2"));
+        Assert.assertEquals(tmgr.holdCount("user"), 0);
+        Assert.assertEquals(tmgr.holdCount("other"), 1);
+    }
+
+    @Test
+    public void holdRejectedOverUserLimit() throws Exception {
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setMaxHoldsPerUser(2);
+        restart(options, new WebService());
+
+        String txId1 = tmgr.hold("user", "1");
+        tmgr.hold("user", "2");
+        Assert.assertEquals(tmgr.hold("user", "2"), tmgr.ticketsOf("user").get(1).getHoldTransId());
+        try {
+            tmgr.hold("user", "3");
+            Assert.fail("expected exception");
+        } catch (TicketManagerException e) {
+            // expected
+        }
+        try {
+            tmgr.holdAny("user");
+            Assert.fail("expected exception");
+        } catch (TicketManagerException e) {
+            // expected
+        }
+        Assert.assertEquals(tmgr.metrics().getHoldsRejectedUserLimit(), 2);
+
+        tmgr.buy("user", "1", txId1);
+        tmgr.hold("user", "3");
+        Assert.assertEquals(tmgr.holdCount("user"), 2);
+    }
+
+    @Test
+    public void waitsCountAgainstUserLimit() throws Exception {
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setMaxHoldsPerUser(1);
+        restart(options, new WebService());
+
+        String txId1 = tmgr.hold("other", "1");
+        String txId2 = tmgr.hold("third", "2");
+        ExecutorService waiter = Executors.newSingleThreadExecutor();
+        try {
+            Callable<String> wait = () -> tmgr.holdWhenAvailable("user", "1", 5000);
+            Future<String> waited = waiter.submit(wait);
+            while (true) {
+                try {
+                    tmgr.holdWhenAvailable("user", "2", 0); //rejected once the first wait is counted
+                    Assert.fail("expected exception");
+                } catch (TicketManagerException e) {
+                    if (e.getMessage().equals("User holds too many tickets")) {
+                        break;
+                    }
+                }
+                if (waited.isDone()) {
+                    waited = waiter.submit(wait); //rejected while this wait was counted
+                }
+            }
+            try {
+                tmgr.hold("user", "3");
+                Assert.fail("expected exception");
+            } catch (TicketManagerException e) {
+                Assert.assertEquals(e.getMessage(), "User holds too many tickets");
+            }
+
+            tmgr.cancel("third", "2", txId2);
+            tmgr.cancel("other", "1", txId1);
+            Assert.assertNotNull(waited.get(5, TimeUnit.SECONDS));
+        } finally {
+            waiter.shutdownNow();
+        }
+        Assert.assertEquals(tmgr.holdCount("user"), 1);
+        Assert.assertEquals(tmgr.ticketsOf("user").get(0).getId(), "1");
+    }
+
+    @Test
+    public void failedExpiryWriteRetried() throws Exception {
+        AtomicInteger failures = new AtomicInteger(1);
+        Storage storage = new Storage(file) {
+            @Override
+            public void update(Collection<Ticket> tickets) throws TicketManagerException {
+                for (Ticket ticket : tickets) {
+                    if (ticket.getStatus() == TicketStatusCode.AVAILABLE && failures.getAndDecrement() > 0) {
+                        throw new TicketManagerException("disk full");
+                    }
+                }
+                super.update(tickets);
+            }
+        };
+        tmgr.shutdown();
+        tmgr = new TicketManager(100, storage, new WebService());
+        tmgr.hold("user", "1");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!getLine(1).equals("1")) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(tmgr.metrics().getExpiryWriteFailures(), 1);
+
+        // The sweeps go on after the failure
+        tmgr.hold("user", "2");
+        while (tmgr.metrics().getHoldsExpired() == 0) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(getLine(2), "2");
+    }
+
+    @Test
+    public void expiredHoldsWrittenTogether() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicBoolean gated = new AtomicBoolean();
+        Storage storage = new Storage(file) {
+            @Override
+            public void update(Collection<Ticket> tickets) throws TicketManagerException {
+                try {
+                    if (gated.get()) {
+                        gate.await();
+                    }
+                } catch (InterruptedException e) {
+                    throw new TicketManagerException(e);
+                }
+                super.update(tickets);
+            }
+        };
+        tmgr.shutdown();
+        tmgr = new TicketManager(500, storage, new WebService());
+        for (int i = 0; i < 10; i++) {
+            if (i == 5) {
+                Thread.sleep(200);
+            }
+            tmgr.hold("user" + i, Integer.toString(i));
+        }
+        long writes = storage.getWriteCount();
+
+        // The later holds come due while the expiry write of the first ones is held back
+        gated.set(true);
+        Thread.sleep(800);
+        gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tmgr.metrics().getHoldsExpired() < 10) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(getLine(i), Integer.toString(i));
+        }
+        Assert.assertTrue(tmgr.metrics().getExpirySweeps() <= 2, tmgr.metrics().getExpirySweeps() + " sweeps");
+        Assert.assertEquals(storage.getWriteCount() - writes, tmgr.metrics().getExpirySweeps());
+        Assert.assertTrue(tmgr.metrics().getMaxExpiryLagMs() >= 100);
+    }
+
+    @Test
+    public void transactionIds() throws Exception {
+        String txId = tmgr.hold("user", "1");
+        UUID uuid = UUID.fromString(txId);
+        Assert.assertEquals(uuid.toString(), txId);
+        Assert.assertEquals(uuid.version(), 4);
+        Assert.assertEquals(uuid.variant(), 2);
+        Assert.assertNotEquals(tmgr.hold("user", "2"), txId);
+
+        TicketManagerOptions options = new TicketManagerOptions();
+        AtomicInteger next = new AtomicInteger();
+        options.setTransactionIdGenerator(() -> "tx" + next.incrementAndGet());
+        restart(options, new WebService());
+        Assert.assertEquals(tmgr.hold("user", "3"), "tx1");
+        Assert.assertEquals(getLine(3), "3 user tx1");
+        Assert.assertEquals(tmgr.buy("user", "3", "tx1"), "3-X");
+    }
+
+    @Test
+    public void expiredHoldHandedToWaiter() throws Exception {
+        tmgr.hold("user1", "6");
+        String txId = tmgr.holdWhenAvailable("user2", "6", 5000);
+        Assert.assertEquals(getLine(6), "6 user2 " + txId);
+        Assert.assertEquals(tmgr.metrics().getHoldHandovers(), 1);
+    }
+
+    @Test
+    public void cancelledHoldHandedToWaiter() throws Exception {
+        tmgr.shutdown();
+        tmgr = new TicketManager(10000, new Storage(file), new WebService());
+        String txId1 = tmgr.hold("user1", "6");
+        ExecutorService waiter = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> txId2 = waiter.submit(() -> tmgr.holdWhenAvailable("user2", "6", 5000));
+            Thread.sleep(50);
+            tmgr.cancel("user1", "6", txId1);
+            Assert.assertEquals(getLine(6), "6 user2 " + txId2.get());
+        } finally {
+            waiter.shutdown();
+        }
+        Assert.assertEquals(tmgr.metrics().getHoldHandovers(), 1);
+    }
+
+    @Test
+    public void holdWhenAvailableTimesOut() throws Exception {
+        tmgr.shutdown();
+        tmgr = new TicketManager(10000, new Storage(file), new WebService());
+        String txId = tmgr.hold("user1", "6");
+        try {
+            tmgr.holdWhenAvailable("user2", "6", 50);
+            Assert.fail("expected exception");
+        } catch (TicketManagerException e) {
+        }
+        tmgr.cancel("user1", "6", txId);
+        Assert.assertEquals(getLine(6), "6");
+    }
+
+    @Test
+    public void buyRejectedWhenPipelineFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setBuyThreads(1);
+        options.setMaxQueuedBuys(0);
+        restart(options, new BlockingWebService(release));
+
+        String txId1 = tmgr.hold("user1", "1");
+        String txId2 = tmgr.hold("user2", "2");
+        ExecutorService buyer = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> first = buyer.submit(() -> tmgr.buy("user1", "1", txId1));
+            while (tmgr.metrics().getBuysInProgress() == 0) {
+                Thread.sleep(1);
+            }
+            try {
+                tmgr.buy("user2", "2", txId2);
+                Assert.fail("expected exception");
+            } catch (TicketManagerException e) {
+                Assert.assertTrue(e.getRetryAfterMs() > 0);
+            }
+            release.countDown();
+            first.get();
+        } finally {
+            release.countDown();
+            buyer.shutdown();
+        }
+        Assert.assertEquals(getLine(2), "2 user2 " + txId2);
+        Assert.assertEquals(tmgr.metrics().getBuysRejectedOverload(), 1);
+    }
+
+    @Test
+    public void buyRejectedOverUserLimit() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setMaxBuysPerUser(1);
+        restart(options, new BlockingWebService(release));
+
+        String txId1 = tmgr.hold("user", "1");
+        String txId2 = tmgr.hold("user", "2");
+        ExecutorService buyer = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> first = buyer.submit(() -> tmgr.buy("user", "1", txId1));
+            while (tmgr.metrics().getBuysInProgress() == 0) {
+                Thread.sleep(1);
+            }
+            try {
+                tmgr.buy("user", "2", txId2);
+                Assert.fail("expected exception");
+            } catch (TicketManagerException e) {
+                Assert.assertTrue(e.getRetryAfterMs() > 0);
+            }
+            release.countDown();
+            first.get();
+        } finally {
+            release.countDown();
+            buyer.shutdown();
+        }
+        Assert.assertEquals(tmgr.buy("user", "2", txId2), "2-X");
+        Assert.assertEquals(tmgr.metrics().getBuysRejectedUserLimit(), 1);
+    }
+
+    @Test
+    public void circuitOpensAndResumesBuying() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        WebService webservice = new WebService() {
+            @Override
+            public String buy(String ticketId, String userId) {
+                if (failing.get()) {
+                    throw new IllegalStateException("unavailable");
+                }
+                return ticketId + "-X";
+            }
+        };
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setBuyRetryMs(20);
+        options.setBreakerWindow(4);
+        options.setBreakerMinCalls(2);
+        options.setBreakerOpenMs(200);
+        restart(options, webservice);
+
+        String txId1 = tmgr.hold("user1", "1");
+        String txId2 = tmgr.hold("user2", "2");
+        ExecutorService buyer = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> first = buyer.submit(() -> tmgr.buy("user1", "1", txId1));
+            while (tmgr.circuitState() != CircuitState.OPEN) {
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(getLine(1), "1 user1 " + txId1 + " *");
+            try {
+                tmgr.buy("user2", "2", txId2);
+                Assert.fail("expected exception");
+            } catch (TicketManagerException e) {
+                Assert.assertTrue(e.getRetryAfterMs() > 0);
+            }
+
+            failing.set(false);
+            Assert.assertEquals(first.get(), "1-X");
+        } finally {
+            buyer.shutdown();
+        }
+        Assert.assertEquals(tmgr.circuitState(), CircuitState.CLOSED);
+        Assert.assertEquals(getLine(1), "1 user1 " + txId1 + " 1-X");
+        Assert.assertEquals(getLine(2), "2 user2 " + txId2);
+        Assert.assertEquals(tmgr.metrics().getCircuitOpened(), 1);
+    }
+
+    @Test
+    public void unexpectedFailureEndsProbe() throws Exception {
+        AtomicInteger mode = new AtomicInteger(); //0: unavailable, 1: broken, 2: working
+        WebService webservice = new WebService() {
+            @Override
+            public String buy(String ticketId, String userId) {
+                if (mode.get() == 0) {
+                    throw new IllegalStateException("unavailable");
+                } else if (mode.get() == 1) {
+                    throw new UnsupportedOperationException("broken");
+                }
+                return ticketId + "-X";
+            }
+        };
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setBuyRetryMs(20);
+        options.setBreakerWindow(4);
+        options.setBreakerMinCalls(2);
+        options.setBreakerOpenMs(200);
+        restart(options, webservice);
+
+        String txId1 = tmgr.hold("user1", "1");
+        ExecutorService buyer = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> first = buyer.submit(() -> tmgr.buy("user1", "1", txId1));
+            while (tmgr.circuitState() != CircuitState.OPEN) {
+                Thread.sleep(1);
+            }
+            mode.set(1); //the half-open probe fails with an unexpected exception
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                Assert.fail("expected exception");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TicketManagerException);
+            }
+
+            mode.set(2);
+            String txId2 = tmgr.hold("user2", "2");
+            Future<String> second = buyer.submit(() -> {
+                while (true) {
+                    try {
+                        return tmgr.buy("user2", "2", txId2);
+                    } catch (TicketManagerException e) {
+                        Thread.sleep(Math.max(1, e.getRetryAfterMs()));
+                    }
+                }
+            });
+            Assert.assertEquals(second.get(5, TimeUnit.SECONDS), "2-X");
+        } finally {
+            buyer.shutdownNow();
+        }
+        Assert.assertEquals(tmgr.circuitState(), CircuitState.CLOSED);
+    }
+
+    @Test
+    public void shutdownFailsParkedPurchase() throws Exception {
+        WebService webservice = new WebService() {
+            @Override
+            public String buy(String ticketId, String userId) {
+                throw new IllegalStateException("unavailable");
+            }
+        };
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setBuyRetryMs(20);
+        options.setBreakerWindow(4);
+        options.setBreakerMinCalls(2);
+        options.setBreakerOpenMs(60000);
+        restart(options, webservice);
+
+        String txId = tmgr.hold("user", "1");
+        ExecutorService buyer = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> bought = buyer.submit(() -> tmgr.buy("user", "1", txId));
+            while (tmgr.circuitState() != CircuitState.OPEN) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(100); //the retry parks until the circuit lets calls through
+
+            long start = System.currentTimeMillis();
+            tmgr.shutdown();
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000, "shutdown waited for the open period");
+            try {
+                bought.get(5, TimeUnit.SECONDS);
+                Assert.fail("expected exception");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TicketManagerException);
+            }
+        } finally {
+            buyer.shutdownNow();
+        }
+        Assert.assertEquals(getLine(1), "1 user " + txId + " *");
+        tmgr = new TicketManager(10000, new Storage(file), new WebService());
+    }
+
+    @Test
+    public void liveBuyAheadOfRecovery() throws Exception {
+        tmgr.shutdown();
+        try (FileWriter wr = new FileWriter(file)) {
+            for (int i = 0; i < 20; i++) {
+                wr.write(i + " user tx" + i + " *\n");
+            }
+            wr.write("20\n");
+        }
+        WebService webservice = new WebService() {
+            @Override
+            public String buy(String ticketId, String userId) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return ticketId + "-X";
+            }
+        };
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setBuyThreads(1);
+        tmgr = new TicketManager(10000, new Storage(file), webservice, options);
+        while (tmgr.metrics().getLaneQueued(PurchaseLane.RECOVERY) < 10) {
+            Thread.sleep(1);
+        }
+
+        String txId = tmgr.hold("user", "20");
+        Assert.assertEquals(tmgr.buy("user", "20", txId), "20-X");
+        Assert.assertTrue(tmgr.metrics().getLaneDispatched(PurchaseLane.RECOVERY) < 10);
+        tmgr.awaitAllBought();
+        Assert.assertEquals(getLine(19), "19 user tx19 19-X");
+    }
+
+    @Test
+    public void recoveryLeavesLiveSlots() throws Exception {
+        tmgr.shutdown();
+        try (FileWriter wr = new FileWriter(file)) {
+            for (int i = 0; i < 5; i++) {
+                wr.write(i + " user tx" + i + " *\n");
+            }
+            wr.write("5\n");
+        }
+        WebService webservice = new WebService() {
+            @Override
+            public String buy(String ticketId, String userId) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return ticketId + "-X";
+            }
+        };
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setBuyThreads(1);
+        options.setMaxQueuedBuys(0);
+        tmgr = new TicketManager(10000, new Storage(file), webservice, options);
+        while (tmgr.metrics().getLaneDispatched(PurchaseLane.RECOVERY) == 0) {
+            Thread.sleep(1);
+        }
+
+        String txId = tmgr.hold("user", "5"); //the only live slot is free while recovery runs
+        Assert.assertEquals(tmgr.metrics().getBuysInProgress(), 0);
+        Assert.assertEquals(tmgr.buy("user", "5", txId), "5-X");
+        tmgr.awaitAllBought();
+        Assert.assertEquals(getLine(4), "4 user tx4 4-X");
+    }
+
+    @Test
+    public void recoveryDuringLoad() throws Exception {
+        tmgr.shutdown();
+        try (FileWriter wr = new FileWriter(file)) {
+            for (int i = 0; i < 50; i++) {
+                wr.write(i + " user tx" + i + " *\n");
+            }
+            for (int i = 50; i < 1000000; i++) {
+                wr.write(i + "\n");
+            }
+        }
+        WebService webservice = new WebService() {
+            @Override
+            public String buy(String ticketId, String userId) {
+                return ticketId + "-X"; //finishes while later tickets are still loaded
+            }
+        };
+        tmgr = new TicketManager(10000, new Storage(file), webservice);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!allBought(tmgr.ticketsOf("user")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        tmgr.shutdown();
+        List<String> lines = Files.readAllLines(file.toPath());
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(lines.get(i), i + " user tx" + i + " " + i + "-X");
+        }
+        tmgr = new TicketManager(10000, new Storage(file), new WebService());
+    }
+
+    private void restart(TicketManagerOptions options, WebService webservice) throws Exception {
+        tmgr.shutdown();
+        tmgr = new TicketManager(10000, new Storage(file), webservice, options);
+    }
+
+    private static boolean allBought(List<Ticket> tickets) {
+        for (Ticket ticket : tickets) {
+            if (ticket.getStatus() != TicketStatusCode.BOUGHT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> ticketIds(List<Ticket> tickets) {
+        Set<String> ids = new HashSet<>();
+        for (Ticket ticket : tickets) {
+            ids.add(ticket.getId());
+        }
+        return ids;
+    }
+
     public String getLine(int n) throws Exception {
         try (Scanner sc = new Scanner(file)) {
             for (int i = 0; i < n; i++) {
@@ -130,4 +785,25 @@ public class TicketManagerTest {
             return sc.nextLine();
         }
     }
+
+    /**
+     * A webservice whose purchases block until released by the test.
+     */
+    static class BlockingWebService extends WebService {
+        private final CountDownLatch release;
+
+        BlockingWebService(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public String buy(String ticketId, String userId) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return ticketId + "-X";
+        }
+    }
 }
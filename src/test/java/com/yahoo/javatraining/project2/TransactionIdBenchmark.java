@@ -0,0 +1,60 @@
+package com.yahoo.javatraining.project2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of UUID.randomUUID() with the default transaction id generator when many threads create
+ * ids at once. Usage: transaction_id_benchmark [threads] [ids per thread]
+ */
+public class TransactionIdBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int ids = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        TransactionIdGenerator uuids = () -> UUID.randomUUID().toString();
+        TransactionIdGenerator generator = new TicketManagerOptions().getTransactionIdGenerator();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 1; round <= ROUNDS; round++) {
+                //the first rounds warm up the JIT
+                System.out.printf("round %d: UUID.randomUUID() %,d ids/s, %s %,d ids/s%n", round,
+                        throughput(pool, threads, ids, uuids), generator.getClass().getSimpleName(),
+                        throughput(pool, threads, ids, generator));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long throughput(ExecutorService pool, int threads, int ids, TransactionIdGenerator generator)
+            throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            tasks.add(pool.submit(() -> {
+                start.await();
+                int length = 0;
+                for (int i = 0; i < ids; i++) {
+                    length += generator.next().length(); //keeps the ids from being optimized away
+                }
+                return length;
+            }));
+        }
+        long startNs = System.nanoTime();
+        start.countDown();
+        for (Future<Integer> task : tasks) {
+            task.get();
+        }
+        long elapsedNs = Math.max(1, System.nanoTime() - startNs);
+        return (long) threads * ids * TimeUnit.SECONDS.toNanos(1) / elapsedNs;
+    }
+}
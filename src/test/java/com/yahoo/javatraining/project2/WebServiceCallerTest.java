@@ -0,0 +1,61 @@
+package com.yahoo.javatraining.project2;
+
+import com.yahoo.javatraining.project2.util.WebService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ */
+public class WebServiceCallerTest {
+
+    @Test
+    public void hedgeAnswersSlowCall() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        WebService webservice = new WebService() {
+            @Override
+            public String buy(String ticketId, String userId) {
+                try {
+                    // The first call after the warm-up stalls; every other call is fast
+                    Thread.sleep(calls.incrementAndGet() == 21 ? 2000 : 10);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return ticketId + "-X";
+            }
+        };
+        TicketManagerOptions options = new TicketManagerOptions();
+        options.setHedgePercentile(0.9);
+        options.setMaxHedgeRatio(1);
+        TicketManagerMetrics metrics = new TicketManagerMetrics();
+        WebServiceCaller caller = new WebServiceCaller(webservice, options, metrics);
+        try {
+            for (int i = 0; i < 20; i++) {
+                caller.buy(String.valueOf(i), "user", 0);
+            }
+            long start = System.currentTimeMillis();
+            Assert.assertEquals(caller.buy("20", "user", 0), "20-X");
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+            Assert.assertEquals(metrics.getHedgesFired(), 1);
+            Assert.assertEquals(metrics.getHedgesWon(), 1);
+        } finally {
+            caller.shutdown();
+        }
+    }
+
+    @Test
+    public void noHedgeWhenDisabled() throws Exception {
+        TicketManagerMetrics metrics = new TicketManagerMetrics();
+        WebServiceCaller caller = new WebServiceCaller(new WebService(), new TicketManagerOptions(), metrics);
+        boolean randomFailures = WebService.randomFailures;
+        WebService.randomFailures = false;
+        try {
+            Assert.assertEquals(caller.buy("1", "user", 0), "1-X");
+            Assert.assertEquals(metrics.getHedgesFired(), 0);
+        } finally {
+            WebService.randomFailures = randomFailures;
+            caller.shutdown();
+        }
+    }
+}
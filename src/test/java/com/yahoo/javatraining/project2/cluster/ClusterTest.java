@@ -0,0 +1,199 @@
+package com.yahoo.javatraining.project2.cluster;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManagerException;
+import com.yahoo.javatraining.project2.TicketManagerOptions;
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.WebService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ */
+public class ClusterTest {
+    static final long LEASE_MS = 300;
+
+    File dir;
+    LeaseDirectory directory;
+    List<ClusteredTicketManager> instances = new ArrayList<>();
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        WebService.randomFailures = false;
+
+        dir = Files.createTempDirectory("cluster").toFile();
+        File tickets = new File(dir, "tickets");
+        try (FileWriter wr = new FileWriter(tickets)) {
+            for (int i = 0; i < 20; i++) {
+                wr.write(i + "\n");
+            }
+        }
+        directory = new LeaseDirectory(dir, 4);
+        directory.initialize(tickets);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws Exception {
+        for (ClusteredTicketManager instance : instances) {
+            instance.shutdown();
+        }
+        instances.clear();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void leaseEpochs() throws Exception {
+        Lease lease = directory.acquire(0, "a", 10000);
+        Assert.assertNotNull(lease);
+        Assert.assertNull(directory.acquire(0, "b", 10000));
+
+        directory.release(lease);
+        Lease taken = directory.acquire(0, "b", 10000);
+        Assert.assertEquals(taken.getEpoch(), lease.getEpoch() + 1);
+        Assert.assertNull(directory.renew(lease, 10000));
+        Assert.assertNotNull(directory.renew(taken, 10000));
+    }
+
+    @Test
+    public void partitionsAreShared() throws Exception {
+        ClusteredTicketManager a = start("a");
+        await(() -> a.ownedPartitions().size() == 4);
+        Assert.assertEquals(a.availableCount(), 20);
+
+        ClusteredTicketManager b = start("b");
+        await(() -> a.ownedPartitions().size() == 2 && b.ownedPartitions().size() == 2);
+        Assert.assertEquals(a.availableCount() + b.availableCount(), 20);
+
+        String ticketId = ticketOwnedBy(b);
+        try {
+            a.hold("u1", ticketId);
+            Assert.fail();
+        } catch (TicketNotOwnedException e) {
+            Assert.assertEquals(e.getOwner(), "b");
+        }
+        String holdTransId = b.hold("u1", ticketId);
+        Assert.assertEquals(b.buy("u1", ticketId, holdTransId), ticketId + "-X");
+    }
+
+    @Test
+    public void heldTicketSurvivesFailover() throws Exception {
+        ClusteredTicketManager a = start("a");
+        await(() -> a.ownedPartitions().size() == 4);
+        ClusteredTicketManager b = start("b");
+        await(() -> b.ownedPartitions().size() == 2);
+
+        String ticketId = ticketOwnedBy(b);
+        String holdTransId = b.hold("u1", ticketId);
+        b.halt();
+        instances.remove(b);
+
+        await(() -> a.ownedPartitions().size() == 4);
+        Assert.assertEquals(a.buy("u1", ticketId, holdTransId), ticketId + "-X");
+    }
+
+    @Test
+    public void expiredLeaseFencesWrites() throws Exception {
+        Lease lease = directory.acquire(0, "a", 100);
+        FencedStorage storage = new FencedStorage(directory.ticketFile(0), Durability.OS_BUFFERED, 0, lease, 20);
+        Ticket ticket = storage.getTickets().get(0);
+        storage.update(ticket);
+
+        Thread.sleep(100);
+        Assert.assertNotNull(directory.acquire(0, "b", 10000));
+        try {
+            storage.update(ticket);
+            Assert.fail("expected exception");
+        } catch (TicketManagerException e) {
+            Assert.assertTrue(e.getMessage().contains("epoch 0"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void handoverFailsWaitingPurchase() throws Exception {
+        CountDownLatch calling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        WebService webservice = new WebService() {
+            @Override
+            public String buy(String ticketId, String userId) {
+                calling.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.buy(ticketId, userId);
+            }
+        };
+        ClusteredTicketManager a = start("a", webservice);
+        await(() -> a.ownedPartitions().size() == 4);
+        String holdTransId = a.hold("u1", "1");
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> buy = pool.submit(() -> a.buy("u1", "1", holdTransId));
+            Assert.assertTrue(calling.await(5, TimeUnit.SECONDS));
+            Future<?> halted = pool.submit(() -> {
+                a.halt();
+                return null;
+            });
+            try {
+                buy.get(5, TimeUnit.SECONDS); //fails while the webservice call is still in progress
+                Assert.fail("expected exception");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TicketNotOwnedException);
+            }
+            release.countDown();
+            halted.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+        instances.remove(a);
+    }
+
+    private ClusteredTicketManager start(String instanceId) throws Exception {
+        return start(instanceId, new WebService());
+    }
+
+    private ClusteredTicketManager start(String instanceId, WebService webservice) throws Exception {
+        ClusteredTicketManager instance = new ClusteredTicketManager(instanceId, directory, LEASE_MS, 10000,
+                Durability.OS_BUFFERED, 0, webservice, new TicketManagerOptions());
+        instances.add(instance);
+        return instance;
+    }
+
+    private String ticketOwnedBy(ClusteredTicketManager instance) {
+        for (int i = 0; i < 20; i++) {
+            if (instance.ownedPartitions().contains(directory.partitionOf(String.valueOf(i)))) {
+                return String.valueOf(i);
+            }
+        }
+        throw new AssertionError("No tickets owned by " + instance.getInstanceId());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * LEASE_MS;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.yahoo.javatraining.project2.http;
+
+import com.yahoo.javatraining.project2.TicketManager;
+import com.yahoo.javatraining.project2.util.Storage;
+import com.yahoo.javatraining.project2.util.WebService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ */
+public class TicketHttpServerTest {
+    File file = new File("/tmp/tickets");
+    TicketManager tmgr;
+    TicketHttpServer server;
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        WebService.randomFailures = false;
+
+        try (FileWriter wr = new FileWriter(file)) {
+            for (int i = 0; i < 10; i++) {
+                wr.write(i + "\n");
+            }
+        }
+        tmgr = new TicketManager(10000, new Storage(file), new WebService());
+        server = new TicketHttpServer(tmgr, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, 2);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws Exception {
+        server.close();
+        tmgr.shutdown();
+    }
+
+    @Test
+    public void pipelinedRequests() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "POST /hold?user=u1&ticket=1 HTTP/1.1\r\nHost: x\r\nContent-Length: 0\r\n\r\n"
+                    + "POST /hold?user=u1&ticket=2 HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /availableCount HTTP/1.1\r\nHost: x\r\n\r\n");
+            Assert.assertTrue(read(socket).startsWith("HTTP/1.1 200 "));
+            Assert.assertTrue(read(socket).startsWith("HTTP/1.1 200 "));
+            Assert.assertEquals(body(read(socket)), "10");
+        }
+    }
+
+    @Test
+    public void holdAndBuy() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "POST /holdAny?user=u1 HTTP/1.1\r\n\r\n");
+            String[] held = body(read(socket)).split(" ");
+
+            send(socket, "POST /buy?user=u1&ticket=" + held[0] + "&tx=" + held[1] + " HTTP/1.1\r\n\r\n");
+            Assert.assertEquals(body(read(socket)), held[0] + "-X");
+
+            send(socket, "POST /buy?user=u2&ticket=" + held[0] + "&tx=" + held[1] + " HTTP/1.1\r\n\r\n");
+            Assert.assertTrue(read(socket).startsWith("HTTP/1.1 409 "));
+        }
+        Assert.assertEquals(tmgr.availableCount(), 9);
+    }
+
+    @Test
+    public void errors() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "POST /hold?user=u1 HTTP/1.1\r\n\r\n"
+                    + "GET /hold?user=u1&ticket=1 HTTP/1.1\r\n\r\n"
+                    + "GET /nothing HTTP/1.1\r\nConnection: close\r\n\r\n");
+            Assert.assertTrue(read(socket).startsWith("HTTP/1.1 400 "));
+            Assert.assertTrue(read(socket).startsWith("HTTP/1.1 405 "));
+            String last = read(socket);
+            Assert.assertTrue(last.startsWith("HTTP/1.1 404 "));
+            Assert.assertTrue(last.contains("Connection: close"));
+            Assert.assertEquals(socket.getInputStream().read(), -1);
+        }
+    }
+
+    @Test
+    public void fragmentedHeaders() throws Exception {
+        String request = "POST /hold?user=u1&ticket=1 HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "GET /availableCount HTTP/1.1\r\n\r\n";
+        try (Socket socket = connect()) {
+            for (int i = 0; i < request.length(); i += 3) {
+                send(socket, request.substring(i, Math.min(request.length(), i + 3)));
+                Thread.sleep(1);
+            }
+            Assert.assertTrue(read(socket).startsWith("HTTP/1.1 200 "));
+            Assert.assertEquals(body(read(socket)), "10");
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String requests) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(requests.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * Reads one response, including its body.
+     */
+    private static String read(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+            int b = in.read();
+            Assert.assertTrue(b >= 0, "Connection closed early");
+            head.write(b);
+        }
+        String response = head.toString("ISO-8859-1");
+        int length = 0;
+        for (String line : response.split("\r\n")) {
+            if (line.startsWith("Content-Length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        byte[] body = new byte[length];
+        for (int n = 0; n < length; ) {
+            int read = in.read(body, n, length - n);
+            Assert.assertTrue(read >= 0, "Connection closed early");
+            n += read;
+        }
+        return response + new String(body, StandardCharsets.UTF_8);
+    }
+
+    private static String body(String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+}
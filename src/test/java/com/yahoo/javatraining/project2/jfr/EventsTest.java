@@ -0,0 +1,150 @@
+package com.yahoo.javatraining.project2.jfr;
+
+import com.yahoo.javatraining.project2.TicketManager;
+import com.yahoo.javatraining.project2.util.Storage;
+import com.yahoo.javatraining.project2.util.WebService;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+/**
+ */
+public class EventsTest {
+    File file;
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        WebService.randomFailures = false;
+        file = File.createTempFile("tickets", "");
+        try (FileWriter wr = new FileWriter(file)) {
+            for (int i = 0; i < 10; i++) {
+                wr.write(i + "\n");
+            }
+        }
+    }
+
+    @AfterMethod
+    public void afterMethod() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void recorded() throws Exception {
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(StorageWriteEvent.class);
+            recording.enable(PurchaseAttemptEvent.class);
+            recording.enable(HoldExpiredEvent.class);
+            recording.start();
+            exercise();
+            recording.stop();
+            events = read(recording);
+        }
+
+        RecordedEvent write = first(events, "StorageWrite");
+        Assert.assertEquals(write.getInt("tickets"), 1);
+        Assert.assertTrue(write.getLong("bytes") > 0);
+
+        RecordedEvent attempt = first(events, "PurchaseAttempt");
+        Assert.assertEquals(attempt.getString("ticketId"), "1");
+        Assert.assertEquals(attempt.getInt("retry"), 0);
+        Assert.assertTrue(attempt.getBoolean("succeeded"));
+
+        RecordedEvent expired = first(events, "HoldExpired");
+        Assert.assertEquals(expired.getString("ticketId"), "2");
+        Assert.assertEquals(expired.getString("userId"), "user2");
+        Assert.assertTrue(expired.getLong("heldMs") >= 50);
+    }
+
+    @Test
+    public void lockWaitRecorded() throws Exception {
+        TicketManager tmgr = new TicketManager(10000, new Storage(file), new WebService());
+        Field field = TicketManager.class.getDeclaredField("global");
+        field.setAccessible(true);
+        Lock global = (Lock) field.get(tmgr);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(LockWaitEvent.class).withThreshold(Duration.ofMillis(20));
+            recording.start();
+            Future<String> hold;
+            global.lock();
+            try {
+                hold = pool.submit(() -> tmgr.hold("user1", "1"));
+                Thread.sleep(100); //the hold waits for the lock
+            } finally {
+                global.unlock();
+            }
+            hold.get();
+            recording.stop();
+            events = read(recording);
+        } finally {
+            pool.shutdown();
+            tmgr.shutdown();
+        }
+
+        RecordedEvent wait = first(events, "LockWait");
+        Assert.assertEquals(wait.getString("lock"), "global");
+        Assert.assertTrue(wait.getDuration().toMillis() >= 50, "Waited " + wait.getDuration());
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.start();
+            exercise();
+            recording.stop();
+            events = read(recording);
+        }
+        Assert.assertTrue(events.stream().noneMatch(e -> e.getEventType().getName().startsWith("com.yahoo")));
+    }
+
+    private void exercise() throws Exception {
+        TicketManager tmgr = new TicketManager(50, new Storage(file), new WebService());
+        try {
+            Assert.assertEquals(tmgr.buy("user1", "1", tmgr.hold("user1", "1")), "1-X");
+            tmgr.hold("user2", "2");
+            while (tmgr.metrics().getHoldsExpired() == 0) {
+                Thread.sleep(10);
+            }
+        } finally {
+            tmgr.shutdown();
+        }
+    }
+
+    private static List<RecordedEvent> read(Recording recording) throws Exception {
+        Path dump = Files.createTempFile("events", ".jfr");
+        try {
+            recording.dump(dump);
+            return RecordingFile.readAllEvents(dump);
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    private static RecordedEvent first(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> matching = events.stream()
+                .filter(e -> e.getEventType().getName().equals("com.yahoo.javatraining.project2." + name))
+                .collect(Collectors.toList());
+        Assert.assertFalse(matching.isEmpty(), "No " + name + " events");
+        return matching.get(0);
+    }
+}
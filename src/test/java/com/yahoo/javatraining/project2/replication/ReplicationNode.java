@@ -0,0 +1,80 @@
+package com.yahoo.javatraining.project2.replication;
+
+import com.yahoo.javatraining.project2.TicketManager;
+import com.yahoo.javatraining.project2.TicketManagerOptions;
+import com.yahoo.javatraining.project2.http.TicketHttpServer;
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.WebService;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs a primary or a standby ticket manager in its own JVM, so that failover can be tried with two processes.
+ * Both serve the HTTP front-end once they are active. Usage:
+ * <pre>
+ * replication_node standby ticketFile replicationPort httpPort
+ * replication_node primary ticketFile standbyHost:replicationPort httpPort
+ * </pre>
+ * The primary runs until "stop" or the end of its input. The standby replicates until "promote", after which it
+ * serves requests until "stop" or the end of its input; the primary must be stopped before it is promoted.
+ */
+public class ReplicationNode {
+    private static final long EXPIRE_TIME_MS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4 || !(args[0].equals("primary") || args[0].equals("standby"))) {
+            System.err.println("Usage: replication_node standby ticketFile replicationPort httpPort");
+            System.err.println("       replication_node primary ticketFile standbyHost:replicationPort httpPort");
+            System.exit(2);
+        }
+        File file = new File(args[1]);
+        int httpPort = Integer.parseInt(args[3]);
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+        if (args[0].equals("primary")) {
+            int colon = args[2].lastIndexOf(':');
+            InetSocketAddress standby = new InetSocketAddress(args[2].substring(0, colon),
+                    Integer.parseInt(args[2].substring(colon + 1)));
+            ReplicatedStorage storage = new ReplicatedStorage(file, Durability.OS_BUFFERED, 0, standby, 1000);
+            System.out.println("standby connected: " + storage.connect());
+            TicketManager tmgr = new TicketManager(EXPIRE_TIME_MS, storage, new WebService());
+            serve(tmgr, httpPort, input);
+            storage.close();
+            System.out.printf("shipped %d updates and %d snapshots%n", storage.getShippedCount(),
+                    storage.getSnapshotCount());
+            return;
+        }
+
+        StandbyReplica replica = new StandbyReplica(file, Durability.OS_BUFFERED, 0,
+                new InetSocketAddress(Integer.parseInt(args[2])));
+        System.out.println("standby listening on port " + replica.getPort() + "; type promote to take over");
+        String line;
+        while ((line = input.readLine()) != null && !line.trim().equals("promote")) {
+            System.out.printf("applied %d updates%n", replica.getAppliedCount());
+        }
+        if (line == null) {
+            replica.close();
+            return;
+        }
+        TicketManager tmgr = replica.promote(EXPIRE_TIME_MS, new WebService(), new TicketManagerOptions());
+        serve(tmgr, httpPort, input);
+    }
+
+    /**
+     * Serves the ticket manager over HTTP until "stop" or the end of the input, then shuts it down.
+     */
+    private static void serve(TicketManager tmgr, int httpPort, BufferedReader input) throws Exception {
+        TicketHttpServer server = new TicketHttpServer(tmgr, new InetSocketAddress(httpPort), 2, 8);
+        System.out.println("serving on port " + server.getPort() + "; type stop to shut down");
+        String line;
+        while ((line = input.readLine()) != null && !line.trim().equals("stop")) {
+            System.out.printf("%d tickets available%n", tmgr.availableCount());
+        }
+        server.close();
+        tmgr.shutdown();
+    }
+}
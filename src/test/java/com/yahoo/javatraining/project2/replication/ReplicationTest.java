@@ -0,0 +1,167 @@
+package com.yahoo.javatraining.project2.replication;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketManager;
+import com.yahoo.javatraining.project2.TicketManagerException;
+import com.yahoo.javatraining.project2.TicketManagerOptions;
+import com.yahoo.javatraining.project2.TicketStatusCode;
+import com.yahoo.javatraining.project2.util.Durability;
+import com.yahoo.javatraining.project2.util.WebService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ */
+public class ReplicationTest {
+    File primaryFile = new File("/tmp/tickets-primary");
+    File standbyFile = new File("/tmp/tickets-standby");
+    StandbyReplica standby;
+    ReplicatedStorage storage;
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        WebService.randomFailures = false;
+
+        try (FileWriter wr = new FileWriter(primaryFile)) {
+            for (int i = 0; i < 10; i++) {
+                wr.write(i + "\n");
+            }
+        }
+        standbyFile.delete();
+        standby = new StandbyReplica(standbyFile, Durability.OS_BUFFERED, 0,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        storage = new ReplicatedStorage(primaryFile, Durability.OS_BUFFERED, 0,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), standby.getPort()), 100);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws Exception {
+        standby.close();
+        storage.close();
+    }
+
+    @Test
+    public void failover() throws Exception {
+        Assert.assertTrue(storage.connect());
+        TicketManager primary = new TicketManager(10000, storage, new WebService());
+        String held = primary.hold("u1", "1");
+        String bought = primary.hold("u2", "2");
+        primary.buy("u2", "2", bought);
+        primary.shutdown();
+        storage.close();
+
+        awaitApplied(storage.getShippedCount());
+        Assert.assertEquals(new String(Files.readAllBytes(standbyFile.toPath())),
+                new String(Files.readAllBytes(primaryFile.toPath())));
+
+        TicketManager promoted = standby.promote(10000, new WebService(), new TicketManagerOptions());
+        try {
+            List<Ticket> tickets = promoted.tickets();
+            Assert.assertEquals(tickets.get(1).getStatus(), TicketStatusCode.HELD);
+            Assert.assertEquals(tickets.get(2).getStatus(), TicketStatusCode.BOUGHT);
+            Assert.assertEquals(promoted.availableCount(), 9);
+            Assert.assertTrue(promoted.cancel("u1", "1", held));
+        } finally {
+            promoted.shutdown();
+        }
+    }
+
+    @Test
+    public void promoteWithoutSnapshot() {
+        try {
+            standby.promote(10000, new WebService(), new TicketManagerOptions());
+            Assert.fail();
+        } catch (Exception e) {
+            Assert.assertEquals(e.getMessage(), "No snapshot has been received from the primary");
+        }
+    }
+
+    @Test
+    public void reconnectSendsSnapshot() throws Exception {
+        Assert.assertTrue(storage.connect());
+        TicketManager primary = new TicketManager(10000, storage, new WebService());
+        try {
+            primary.hold("u1", "1");
+            storage.disconnect();
+            Thread.sleep(150);
+            primary.hold("u1", "3");
+        } finally {
+            primary.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (storage.getSnapshotCount() < 2) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        while (standby.tickets().size() < 10 || standby.tickets().get(3).getStatus() != TicketStatusCode.HELD) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(standby.tickets().get(1).getStatus(), TicketStatusCode.HELD);
+    }
+
+    @Test
+    public void overflowSendsSnapshot() throws Exception {
+        storage.close();
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger reads = new AtomicInteger();
+        storage = new ReplicatedStorage(primaryFile, Durability.OS_BUFFERED, 0,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), standby.getPort()), 100, 2) {
+            @Override
+            public List<Ticket> getTickets() throws TicketManagerException {
+                if (reads.incrementAndGet() == 1) {
+                    reading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new TicketManagerException(e);
+                    }
+                    throw new TicketManagerException("snapshot failed");
+                }
+                return super.getTickets();
+            }
+        };
+        Assert.assertTrue(reading.await(5, TimeUnit.SECONDS)); //the shipper is stuck in the first snapshot
+        for (int i = 0; i < 5; i++) {
+            storage.update(held(Integer.toString(i), "u" + i)); //neither the overflow nor the failure is reported
+        }
+        Assert.assertTrue(storage.getOverflowCount() > 0);
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (standby.tickets().size() < 10 || standby.tickets().get(4).getStatus() != TicketStatusCode.HELD) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(standby.tickets().get(0).getUserId(), "u0");
+    }
+
+    private static Ticket held(String id, String userId) {
+        Ticket ticket = new Ticket(id);
+        ticket.setStatus(TicketStatusCode.HELD);
+        ticket.setUserId(userId);
+        ticket.setHoldTransId("tx");
+        return ticket;
+    }
+
+    private void awaitApplied(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (standby.getAppliedCount() < count) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
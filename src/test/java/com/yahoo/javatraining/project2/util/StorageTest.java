@@ -0,0 +1,90 @@
+package com.yahoo.javatraining.project2.util;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketStatusCode;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ */
+public class StorageTest {
+    File file;
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        file = File.createTempFile("tickets", "");
+        try (FileWriter wr = new FileWriter(file)) {
+            for (int i = 0; i < 10; i++) {
+                wr.write(i + "\n");
+            }
+        }
+    }
+
+    @AfterMethod
+    public void afterMethod() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void fsync() throws Exception {
+        Storage storage = new Storage(file, Durability.FSYNC, 0);
+        storage.update(held("1", "user"));
+        Assert.assertEquals(lines().get(1), "1 user tx");
+        Assert.assertEquals(storage.getSyncCount(), 1);
+        Assert.assertFalse(new File(file + ".new").exists());
+    }
+
+    @Test
+    public void osBuffered() throws Exception {
+        Storage storage = new Storage(file);
+        storage.update(held("1", "user"));
+        Assert.assertEquals(lines().get(1), "1 user tx");
+        Assert.assertEquals(storage.getDurability(), Durability.OS_BUFFERED);
+        Assert.assertEquals(storage.getSyncCount(), 0);
+    }
+
+    @Test
+    public void groupFsync() throws Exception {
+        Storage storage = new Storage(file, Durability.GROUP_FSYNC, 60000);
+        storage.update(held("1", "user1"));
+        storage.update(held("2", "user2"));
+        Assert.assertEquals(lines().get(1), "1");
+        Assert.assertEquals(storage.getWriteCount(), 0);
+
+        storage.flush();
+        Assert.assertEquals(lines().get(1), "1 user1 tx");
+        Assert.assertEquals(lines().get(2), "2 user2 tx");
+        Assert.assertEquals(storage.getWriteCount(), 1);
+        Assert.assertEquals(storage.getSyncCount(), 1);
+    }
+
+    @Test
+    public void batchUpdate() throws Exception {
+        Storage storage = new Storage(file);
+        storage.update(Arrays.asList(held("3", "user1"), held("4", "user2"), held("3", "user3")));
+        Assert.assertEquals(lines().get(3), "3 user3 tx");
+        Assert.assertEquals(lines().get(4), "4 user2 tx");
+        Assert.assertEquals(storage.getWriteCount(), 1);
+        Assert.assertEquals(storage.getTickets().get(4).getStatus(), TicketStatusCode.HELD);
+    }
+
+    private Ticket held(String id, String userId) {
+        Ticket ticket = new Ticket(id);
+        ticket.setStatus(TicketStatusCode.HELD);
+        ticket.setUserId(userId);
+        ticket.setHoldTransId("tx");
+        return ticket;
+    }
+
+    private List<String> lines() throws Exception {
+        return Files.readAllLines(file.toPath());
+    }
+}
@@ -0,0 +1,132 @@
+package com.yahoo.javatraining.project2.util;
+
+import com.yahoo.javatraining.project2.Ticket;
+import com.yahoo.javatraining.project2.TicketStatusCode;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+
+/**
+ */
+public class TicketIndexTest {
+    File file;
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        file = File.createTempFile("tickets", "");
+        try (FileWriter wr = new FileWriter(file)) {
+            wr.write("a\n");
+            wr.write("b u1 tx1\n");
+            wr.write("\n");
+            wr.write("c u2 tx2 *\n");
+            wr.write("d u3 tx3 buy3\n");
+        }
+    }
+
+    @AfterMethod
+    public void afterMethod() throws Exception {
+        file.delete();
+        new File(file + ".idx").delete();
+    }
+
+    @Test
+    public void build() throws Exception {
+        Storage storage = new Storage(file);
+        TicketIndex index = storage.openIndex();
+        Assert.assertEquals(index.size(), 4);
+        Assert.assertEquals(index.find("x"), -1);
+        Assert.assertEquals(index.status(index.find("b")), TicketStatusCode.HELD);
+        Assert.assertEquals(index.status(index.find("c")), TicketStatusCode.BUYING);
+        Assert.assertEquals(index.read(index.find("d")).getBuyTransId(), "buy3");
+        Assert.assertEquals(index.count(TicketStatusCode.AVAILABLE), 1);
+        Assert.assertEquals(index.count(TicketStatusCode.BOUGHT), 1);
+        storage.closeIndex();
+    }
+
+    @Test
+    public void followsUpdates() throws Exception {
+        Storage storage = new Storage(file);
+        TicketIndex index = storage.openIndex();
+        Ticket a = new Ticket("a");
+        a.setStatus(TicketStatusCode.HELD);
+        a.setUserId("user-with-a-long-name");
+        a.setHoldTransId("tx");
+        Ticket b = new Ticket("b");
+        storage.update(Arrays.asList(a, b));
+
+        Assert.assertEquals(index.status(index.find("a")), TicketStatusCode.HELD);
+        Assert.assertEquals(index.status(index.find("b")), TicketStatusCode.AVAILABLE);
+        Assert.assertEquals(index.read(index.find("c")).getHoldTransId(), "tx2");
+        Assert.assertEquals(index.read(index.find("a")).getUserId(), "user-with-a-long-name");
+        storage.closeIndex();
+
+        // The persisted index is reused
+        long writes = new File(file + ".idx").lastModified();
+        index = new Storage(file).openIndex();
+        Assert.assertEquals(new File(file + ".idx").lastModified(), writes);
+        Assert.assertEquals(index.read(index.find("d")).getStatus(), TicketStatusCode.BOUGHT);
+        index.close();
+    }
+
+    @Test
+    public void followsScatteredUpdates() throws Exception {
+        Storage storage = new Storage(file);
+        TicketIndex index = storage.openIndex();
+        Ticket b = new Ticket("b");
+        Ticket d = new Ticket("d");
+        d.setStatus(TicketStatusCode.HELD);
+        d.setUserId("u4");
+        d.setHoldTransId("a-longer-transaction-id");
+        storage.update(Arrays.asList(b, d));
+        Ticket a = new Ticket("a");
+        a.setStatus(TicketStatusCode.HELD);
+        a.setUserId("u5");
+        a.setHoldTransId("tx5");
+        storage.update(a);
+
+        Assert.assertEquals(index.count(TicketStatusCode.AVAILABLE), 1);
+        Assert.assertEquals(index.count(TicketStatusCode.HELD), 2);
+        Assert.assertEquals(index.count(TicketStatusCode.BOUGHT), 0);
+        Assert.assertEquals(index.read(index.find("a")).getUserId(), "u5");
+        Assert.assertEquals(index.read(index.find("b")).getStatus(), TicketStatusCode.AVAILABLE);
+        Assert.assertEquals(index.read(index.find("c")).getHoldTransId(), "tx2");
+        Assert.assertEquals(index.read(index.find("d")).getHoldTransId(), "a-longer-transaction-id");
+        storage.closeIndex();
+    }
+
+    @Test
+    public void rebuiltWhenContentChanges() throws Exception {
+        new Storage(file).openIndex().close();
+        long modified = file.lastModified();
+        try (FileWriter wr = new FileWriter(file)) {
+            wr.write("e\n");
+            wr.write("f u1 tx1\n");
+            wr.write("\n");
+            wr.write("g u2 tx2 *\n");
+            wr.write("h u3 tx3 buy3\n");
+        }
+        Assert.assertTrue(file.setLastModified(modified)); //same length and time, different tickets
+        TicketIndex index = new Storage(file).openIndex();
+        Assert.assertEquals(index.find("a"), -1);
+        Assert.assertEquals(index.find("h"), 3);
+        index.close();
+    }
+
+    @Test
+    public void rebuiltWhenFileChanges() throws Exception {
+        new Storage(file).openIndex().close();
+        try (FileWriter wr = new FileWriter(file)) {
+            wr.write("x\n");
+            wr.write("y\n");
+        }
+        TicketIndex index = new Storage(file).openIndex();
+        Assert.assertEquals(index.size(), 2);
+        Assert.assertEquals(index.find("y"), 1);
+        index.close();
+    }
+}